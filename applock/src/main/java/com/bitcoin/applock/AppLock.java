@@ -2,24 +2,35 @@ package com.bitcoin.applock;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.ComponentCallbacks;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.biometric.BiometricPrompt;
 import androidx.core.hardware.fingerprint.FingerprintManagerCompat;
 import androidx.core.os.CancellationSignal;
 
-import com.bitcoin.applock.activities.UnlockActivity;
 import com.bitcoin.applock.services.BiometricsLockService;
 import com.bitcoin.applock.services.FingerprintLockService;
 import com.bitcoin.applock.services.LockService;
+import com.bitcoin.applock.services.LockServiceHandle;
+import com.bitcoin.applock.services.LockServiceRegistry;
 import com.bitcoin.applock.services.PINLockService;
-
-import java.util.HashMap;
+import com.bitcoin.applock.utils.AppLockExecutors;
+import com.bitcoin.applock.utils.CryptoUtils;
+import com.bitcoin.applock.utils.ForegroundTracker;
+import com.bitcoin.applock.utils.InactivityMonitor;
+import com.bitcoin.applock.utils.KeyHealthChecker;
+import com.bitcoin.applock.utils.SessionKey;
+import com.bitcoin.applock.utils.WriteBehindPreferences;
+
+import java.lang.ref.WeakReference;
 import java.util.concurrent.TimeUnit;
 
-public class AppLock {
+public class AppLock implements ForegroundTracker.Delegate, InactivityMonitor.Delegate, KeyHealthChecker.Delegate {
 
     public static final int REQUEST_CODE_UNLOCK = 9371;
     public static final int REQUEST_CODE_LOCK_CREATION = 9372;
@@ -30,104 +41,514 @@ public class AppLock {
     public static final int ERROR_CODE_FINGERPRINTS_NOT_LOCALLY_ENROLLED = 4;
     public static final int ERROR_CODE_SDK_VERSION_MINIMUM = 5;
     public static final int ERROR_CODE_SCREEN_LOCK_DISABLED = 6;
+    // The PIN's keystore key is gone, so it can't be verified until the user enrolls again
+    public static final int ERROR_CODE_PIN_KEY_LOST = 7;
 
-    public Activity fragmentActivity;
+    // Passed to UnlockDelegate.onAuthenticationHelp() when an entered PIN couldn't be submitted
+    public static final int HELP_CODE_PIN_VERIFICATION_BUSY = 1000;
 
-    public Dialog activeDialog;
     private static final String PREFS = "pin__preferences";
-    private static final String PREF_UNLOCK_FAILURE_TIME = "pin__unlock_failure_time";
     private static final String PREF_UNLOCK_SUCCESS_TIME = "pin__unlock_success_time";
-    private static AppLock instance;
-    protected Context context;
-    protected HashMap<Class, LockService> lockServices = new HashMap<Class, LockService>();
-    protected int unlockAttemptsCount = 1;
+    private static final long INVALIDATION_PERSIST_TIMEOUT_MS = 2000;
+    private static volatile AppLock instance;
+    protected final Context context;
+    protected final LockServiceRegistry lockServices;
+    protected volatile WeakReference<Dialog> activeDialog = new WeakReference<Dialog>(null);
+    protected volatile LockState lockState;
+    protected final AppLockConfiguration configuration;
+    protected final WriteBehindPreferences persistence;
+    protected final FailureThrottle failureThrottle;
+    protected final Handler mainHandler = new Handler(Looper.getMainLooper());
+    protected volatile DeviceCapabilities deviceCapabilities;
+    protected int deviceCapabilitiesGeneration;
+    protected final ForegroundTracker foregroundTracker;
+    protected volatile boolean unlockPending;
+    protected final InactivityMonitor inactivityMonitor;
+    protected final UnlockCoordinator unlockCoordinator = new UnlockCoordinator();
+    protected final AuthorizationGrants authorizationGrants = new AuthorizationGrants();
+    protected volatile SessionKey sessionKey;
+    protected volatile SecretVault secretVault;
+    protected final KeyHealthChecker keyHealthChecker;
+    protected volatile WeakReference<Activity> resumedActivity = new WeakReference<Activity>(null);
+    protected volatile WeakReference<Activity> lockableActivity = new WeakReference<Activity>(null);
 
     protected AppLock(Context context) {
-        this.context = context;
+        this(context, AppLockConfiguration.fromResources(context));
+    }
+
+    protected AppLock(Context context, AppLockConfiguration configuration) {
+        // Never hold on to an Activity from a process-wide singleton
+        this.context = context.getApplicationContext() == null ? context : context.getApplicationContext();
+        this.configuration = configuration;
+        this.persistence = new WriteBehindPreferences(getPreferences(), AppLockExecutors.getPersistenceExecutor());
+
+        this.failureThrottle = new FailureThrottle(
+                configuration.maxRetryCount,
+                configuration.failureRetryDelayMs,
+                configuration.failureRetryDelayMaxMs);
+        this.failureThrottle.load(context, persistence);
+
+        this.lockServices = new LockServiceRegistry(this, configuration.lockServices);
+
+        context.getApplicationContext()
+                .registerComponentCallbacks(new ComponentCallbacks() {
+                    public void onConfigurationChanged(Configuration configuration) {
+                        invalidateDeviceCapabilities();
+                    }
+
+                    public void onLowMemory() {
+                    }
+                });
+
+        refreshDeviceCapabilities(null);
+
+        // There's no background timestamp to go on before the first foregrounding, so fall
+        // back to the persisted unlock time, which is all that survives a process death.
+        // Enrollment isn't resolved here: the LockServices call back into getInstance(), and the
+        // instance isn't published yet. Every reader of unlockPending checks isEnrolled() itself.
+        this.unlockPending = configuration.unlockValidityMs < System.currentTimeMillis() - getLockState().getUnlockSuccessTime();
+        this.inactivityMonitor = new InactivityMonitor(configuration.inactivityTimeoutMs, this);
+        this.foregroundTracker = ForegroundTracker.register(context, this);
+        this.keyHealthChecker = new KeyHealthChecker(context, this);
+
+        keyHealthChecker.schedule();
+
+        // Created from an Activity that has already resumed, so the tracker won't report it
+        if (context instanceof Activity)
+            onForegroundActivityResumed((Activity) context);
+    }
+
+    /**
+     * Create the AppLock instance with a custom configuration. This must be called before
+     * anything else uses AppLock, ideally from Application.onCreate(); otherwise the
+     * configuration defined by the applock__ resources is used.
+     */
+    public static AppLock initialize(Context context, AppLockConfiguration configuration) {
+        synchronized (AppLock.class) {
+            if (instance != null)
+                throw new RuntimeException("AppLock has already been initialized");
+
+            instance = new AppLock(context, configuration);
 
-        this.lockServices.put(PINLockService.class, new PINLockService());
-        this.lockServices.put(FingerprintLockService.class, new FingerprintLockService());
-        this.lockServices.put(BiometricsLockService.class, new BiometricsLockService());
+            return instance;
+        }
     }
 
+    /**
+     * Safe to call from any thread. Only the first call, which creates the instance, ever locks.
+     */
     public static AppLock getInstance(Context context) {
-        if (instance == null)
-            instance = new AppLock(context);
+        AppLock helper = instance;
+
+        if (helper != null)
+            return helper;
+
+        synchronized (AppLock.class) {
+            if (instance == null)
+                instance = new AppLock(context);
 
-        return instance;
+            return instance;
+        }
+    }
+
+    public AppLockConfiguration getConfiguration() {
+        return configuration;
     }
 
     /**
-     * @return true if the user has enrolled in either PIN or Fingerprint locking
+     * @return true if the user has enrolled in any of the registered LockServices
      */
     public static boolean isEnrolled(Context context) {
-        AppLock helper = getInstance(context);
+        return getInstance(context)
+                .isEnrolled();
+    }
 
-        for (LockService service : helper.lockServices.values()) {
-            if (service.isEnrolled(context))
+    /**
+     * Resolve enrollment from the cheapest registered LockService up, stopping at the first one
+     * the user is enrolled in. Each answer is kept in the lock state, so once resolved this is a field read.
+     *
+     * @return true if the user has enrolled in any of the registered LockServices
+     */
+    public boolean isEnrolled() {
+        LockState state = getLockState();
+
+        if (state.isEnrolled())
+            return true;
+
+        if (state.isEnrollmentKnown(lockServices.getEnrollmentFlags()))
+            return false;
+
+        for (LockServiceHandle<?> handle : lockServices.getHandlesByCost()) {
+            if (state.isEnrollmentKnown(handle.getEnrollmentFlag()))
+                continue;
+
+            boolean enrolled = lockServices.get(handle)
+                    .isEnrolled(context);
+
+            synchronized (this) {
+                // Don't overwrite an answer a LockService reported while we were asking
+                if (!getLockState().isEnrollmentKnown(handle.getEnrollmentFlag()))
+                    this.lockState = getLockState().withEnrollment(handle.getEnrollmentFlag(), enrolled);
+            }
+
+            if (enrolled)
                 return true;
         }
 
-        return false;
+        return getLockState().isEnrolled();
     }
 
     /**
-     * @return true if the user is enrolled in locking and the last successful unlock happened more than the default lock duration ago
+     * @return true if the user is enrolled in locking and the app has locked since the last
+     * successful unlock, the same decision the resume flow makes, so it isn't affected by
+     * changes to the device clock
      */
     public static boolean isUnlockRequired(Context context) {
-        int minutes = context.getResources()
-                .getInteger(R.integer.applock__activity_lock_reenable_minutes);
+        AppLock helper = getInstance(context);
 
-        return isUnlockRequired(context, TimeUnit.MINUTES.toMillis(minutes)) && !AppLock.getInstance(context).isUnlockDialogShowing();
+        return helper.isUnlockPending() && !helper.isUnlockDialogShowing();
     }
 
     /**
      * @return true if the user is enrolled in locking and the last successful unlock happened more than lastSuccessValidMs ago
      */
     public static boolean isUnlockRequired(Context context, long lastSuccessValidMs) {
-        return isEnrolled(context) && lastSuccessValidMs < System.currentTimeMillis() - getUnlockSuccessTime(context);
+        return getInstance(context)
+                .isUnlockRequired(lastSuccessValidMs);
+    }
+
+    protected boolean isUnlockRequired(long lastSuccessValidMs) {
+        LockState state = getLockState();
+
+        return lastSuccessValidMs < System.currentTimeMillis() - state.getUnlockSuccessTime() && isEnrolled();
+    }
+
+    protected boolean isUnlockPending() {
+        return unlockPending && isEnrolled();
     }
 
     protected static long getUnlockSuccessTime(Context context) {
         return AppLock.getInstance(context)
-                .getPreferences()
-                .getLong(PREF_UNLOCK_SUCCESS_TIME, 0);
+                .getLockState()
+                .getUnlockSuccessTime();
     }
 
-    public static void onActivityResumed(Activity activity) {
-        if (isUnlockRequired(activity)) {
-            boolean unlockActivityReturnAllowed = activity.getResources()
-                    .getBoolean(R.bool.applock__unlock_activity_return_allowed);
+    /**
+     * @return the current lock state snapshot, loading it from the preferences the first
+     * time it's requested. Enrollment is only resolved on demand, see isEnrolled().
+     */
+    public LockState getLockState() {
+        LockState state = this.lockState;
 
-            Intent intent = new Intent(activity, UnlockActivity.class)
-                    .putExtra(UnlockActivity.INTENT_ALLOW_UNLOCKED_EXIT, unlockActivityReturnAllowed);
+        if (state != null)
+            return state;
 
-            activity.startActivityForResult(intent, REQUEST_CODE_UNLOCK);
+        synchronized (this) {
+            if (this.lockState == null)
+                this.lockState = loadLockState();
+
+            return this.lockState;
         }
     }
 
+    protected LockState loadLockState() {
+        return new LockState(
+                0,
+                0,
+                0,
+                persistence.getLong(PREF_UNLOCK_SUCCESS_TIME, 0));
+    }
+
+    /**
+     * Called by the LockServices whenever their enrollment state is written so the
+     * lock state snapshot never needs to go back to the preferences.
+     */
+    public synchronized void onEnrollmentChanged(Class<? extends LockService> named, boolean enrolled) {
+        LockServiceHandle<?> handle = lockServices.getHandle(named);
+
+        if (handle == null)
+            return;
+
+        LockState state = getLockState();
+
+        // Whoever just created the first lock doesn't need to unlock it right away
+        if (enrolled && !state.isEnrolled() && state.isEnrollmentKnown(lockServices.getEnrollmentFlags()))
+            this.unlockPending = false;
+
+        this.lockState = state.withEnrollment(handle.getEnrollmentFlag(), enrolled);
+    }
+
+    /**
+     * Answered from the lock state, or the service if something already instantiated it, so the
+     * check on every start and foreground never instantiates the fingerprint service itself.
+     */
+    @Override
+    public boolean isAuthKeyInUse() {
+        LockServiceHandle<FingerprintLockService> handle = LockServiceHandle.FINGERPRINT;
+
+        if (!lockServices.isRegistered(handle) || !configuration.fingerprintServiceEnabled)
+            return false;
+
+        LockState state = getLockState();
+
+        if (state.isEnrollmentKnown(handle.getEnrollmentFlag()))
+            return state.isEnrolled(handle.getEnrollmentFlag());
+
+        LockService service = lockServices.peek(handle);
+
+        return service != null && service.isEnrolled(context);
+    }
+
+    @Override
+    public SessionKey getSessionKeyInUse() {
+        return sessionKey;
+    }
+
+    @Override
+    public boolean isPINKeyInUse() {
+        PINLockService service = lockServices.get(LockServiceHandle.PIN);
+
+        return service != null && service.isKeystoreBacked(context);
+    }
+
+    @Override
+    public boolean isVaultKeyInUse() {
+        return SecretVault.hasStoredSecrets(context);
+    }
+
+    /**
+     * Keys that were replaced because they were invalidated mark their LockService, so the unlock
+     * flow falls back to the PIN right away instead of after a failed attempt.
+     */
+    @Override
+    public void onKeyHealthChecked(KeyHealthChecker.Status authKey, KeyHealthChecker.Status sessionKey, KeyHealthChecker.Status pinKey, KeyHealthChecker.Status vaultKey) {
+        if (pinKey == KeyHealthChecker.Status.LOST)
+            onKeyInvalidated(LockServiceHandle.PIN, true);
+
+        SecretVault secretVault = this.secretVault;
+
+        // Its next access reports the loss, which only SecretVault.reset() resolves
+        if (vaultKey == KeyHealthChecker.Status.LOST && secretVault != null)
+            secretVault.onKeyLost();
+
+        if (authKey == KeyHealthChecker.Status.INVALIDATED)
+            onKeyInvalidated(LockServiceHandle.FINGERPRINT, true);
+
+        if (sessionKey == KeyHealthChecker.Status.INVALIDATED)
+            onKeyInvalidated(LockServiceHandle.BIOMETRICS, true);
+
+        // A prepared Cipher may belong to the replaced key
+        if (authKey != KeyHealthChecker.Status.HEALTHY && isAuthKeyInUse())
+            lockServices.get(LockServiceHandle.FINGERPRINT).prepareAuthentication(context);
+    }
+
+    public synchronized void onKeyInvalidated(LockServiceHandle<?> handle, boolean invalidated) {
+        this.lockState = getLockState().withKeyInvalidated(handle.getEnrollmentFlag(), invalidated);
+    }
+
+    /**
+     * @return true if handle's keystore key was invalidated since the user last unlocked with their PIN
+     */
+    public boolean isKeyInvalidated(LockServiceHandle<?> handle) {
+        return getLockState().isKeyInvalidated(handle.getEnrollmentFlag());
+    }
+
+    protected synchronized void clearKeyInvalidations() {
+        LockState state = getLockState();
+
+        for (LockServiceHandle<?> handle : lockServices.getHandlesByCost())
+            state = state.withKeyInvalidated(handle.getEnrollmentFlag(), false);
+
+        this.lockState = state;
+    }
+
+    /**
+     * @return the cached device capability snapshot, which is marked stale while a background
+     * re-probe is running. Only if no probe has ever succeeded are the system services probed
+     * on the calling thread.
+     */
+    public DeviceCapabilities getDeviceCapabilities() {
+        DeviceCapabilities capabilities = this.deviceCapabilities;
+
+        if (capabilities != null)
+            return capabilities;
+
+        int generation;
+
+        synchronized (this) {
+            generation = deviceCapabilitiesGeneration;
+        }
+
+        capabilities = DeviceCapabilities.probe(context, lockServices.isRegistered(LockServiceHandle.FINGERPRINT));
+
+        storeDeviceCapabilities(capabilities, generation);
+
+        return capabilities;
+    }
+
+    /**
+     * Mark the cached device capabilities stale and probe them again in the background.
+     * Call this when something the snapshot covers may have changed.
+     */
+    public void invalidateDeviceCapabilities() {
+        refreshDeviceCapabilities(null);
+    }
+
+    /**
+     * Mark the cached device capabilities stale and probe them again in the background,
+     * running onRefreshed on the main thread once the new snapshot is available. Readers keep
+     * getting the stale snapshot until then, so a configuration change never costs the main
+     * thread a binder call.
+     */
+    public void refreshDeviceCapabilities(final Runnable onRefreshed) {
+        final int generation;
+
+        synchronized (this) {
+            generation = ++deviceCapabilitiesGeneration;
+
+            DeviceCapabilities capabilities = this.deviceCapabilities;
+
+            if (capabilities != null)
+                this.deviceCapabilities = capabilities.asStale();
+        }
+
+        AppLockExecutors.getProbeExecutor()
+                .execute(new Runnable() {
+                    public void run() {
+                        storeDeviceCapabilities(DeviceCapabilities.probe(context, lockServices.isRegistered(LockServiceHandle.FINGERPRINT)), generation);
+
+                        if (onRefreshed != null)
+                            mainHandler.post(onRefreshed);
+                    }
+                });
+    }
+
+    /**
+     * Cache capabilities unless the probe failed or the cache was invalidated after it started,
+     * in which case the result may already be stale.
+     */
+    protected synchronized void storeDeviceCapabilities(DeviceCapabilities capabilities, int generation) {
+        if (capabilities.isProbeFailed() || generation != deviceCapabilitiesGeneration)
+            return;
+
+        this.deviceCapabilities = capabilities;
+    }
+
+    @Override
+    public void onBackground() {
+        // Background time is covered by the foreground check, no need to wake up for it
+        inactivityMonitor.stop();
+    }
+
+    /**
+     * Decide whether the app needs to be unlocked again. This only happens when the app comes back
+     * from the background, and only depends on how long it was there, not on the wall clock.
+     */
+    @Override
+    public void onForeground(long backgroundDurationMs) {
+        // The lock screen or biometrics may have been changed while the app was away
+        keyHealthChecker.schedule();
+
+        boolean backgroundExpired = backgroundDurationMs != ForegroundTracker.BACKGROUND_DURATION_UNKNOWN
+                && configuration.unlockValidityMs <= backgroundDurationMs;
+
+        if (!backgroundExpired && !inactivityMonitor.isIdleExpired())
+            return;
+
+        if (isEnrolled())
+            setAuthenticationRequired();
+    }
+
+    @Override
+    public void onForegroundActivityResumed(Activity activity) {
+        if (resumedActivity.get() != activity)
+            this.resumedActivity = new WeakReference<Activity>(activity);
+
+        inactivityMonitor.attach(activity);
+    }
+
+    /**
+     * Lock the app after the user hasn't interacted with it for applock__inactivity_lock_minutes,
+     * re-opening the UnlockActivity right away if a lockable Activity is in front.
+     */
+    @Override
+    public void onInactivityTimeout() {
+        if (unlockPending || !isEnrolled())
+            return;
+
+        setAuthenticationRequired();
+
+        Activity lockable = lockableActivity.get();
+
+        if (lockable != null && lockable == resumedActivity.get())
+            onActivityResumed(lockable);
+    }
+
+    /**
+     * Open the UnlockActivity if the app came back from the background after its unlock expired.
+     * This is a couple of field reads, so it's cheap to call from every Activity's onPostResume().
+     */
+    public static void onActivityResumed(Activity activity) {
+        AppLock helper = getInstance(activity);
+
+        if (helper.lockableActivity.get() != activity)
+            helper.lockableActivity = new WeakReference<Activity>(activity);
+
+        if (isUnlockRequired(activity))
+            helper.unlockCoordinator.requestUnlock(activity, helper.configuration.unlockActivityReturnAllowed);
+    }
+
     /**
      * Check if an action-based unlock is required and navigates to the UnlockActivity if true.
+     * If an UnlockActivity is already showing, no other is opened, and activity only hears about
+     * the outcome if it implements UnlockCoordinator.Waiter.
      *
      * @return true if unlock is required.
      */
     public static boolean unlockIfRequired(Activity activity) {
         if (isUnlockRequired(activity)) {
-            Intent intent = new Intent(activity, UnlockActivity.class)
-                    .putExtra(UnlockActivity.INTENT_ALLOW_UNLOCKED_EXIT, true);
-
-            activity.startActivityForResult(intent, REQUEST_CODE_UNLOCK);
+            getInstance(activity)
+                    .unlockCoordinator
+                    .requestUnlock(activity, true);
 
             return true;
         } else
             return false;
     }
 
+    public UnlockCoordinator getUnlockCoordinator() {
+        return unlockCoordinator;
+    }
+
     public boolean isUnlockDialogShowing() {
-        return activeDialog != null && activeDialog.isShowing();
+        Dialog dialog = activeDialog.get();
+
+        return dialog != null && dialog.isShowing();
+    }
+
+    /**
+     * Register the Dialog currently unlocking the app, so the activity lock doesn't open the
+     * UnlockActivity on top of it. Only a weak reference is kept.
+     */
+    public void setActiveDialog(Dialog dialog) {
+        this.activeDialog = new WeakReference<Dialog>(dialog);
     }
 
     public void attemptBiometricUnlock(final Context newContext, final UnlockDelegate eventListener) {
+        attemptBiometricUnlock(newContext, false, eventListener);
+    }
+
+    /**
+     * Unlock with a strong biometric or the device credential, the only authentications that open
+     * the SessionKey's validity window, e.g. right before a batch of keystore operations.
+     */
+    public void attemptSessionKeyUnlock(final Context newContext, final UnlockDelegate eventListener) {
+        getSessionKey();
+
+        attemptBiometricUnlock(newContext, true, eventListener);
+    }
+
+    protected void attemptBiometricUnlock(final Context newContext, final boolean sessionKeyRequired, final UnlockDelegate eventListener) {
         if (handleFailureBlocking(eventListener))
             return;
 
@@ -145,8 +566,12 @@ public class AppLock {
 
             @Override
             public void onAuthenticationSuccess(BiometricPrompt.AuthenticationResult result) {
-                onUnlockSuccessful(eventListener);
+                SessionKey sessionKey = AppLock.this.sessionKey;
 
+                if (sessionKey != null)
+                    sessionKey.onAuthenticated();
+
+                onUnlockSuccessful(eventListener);
             }
 
             @Override
@@ -154,8 +579,18 @@ public class AppLock {
                 handleUnlockFailure(message, eventListener);
             }
         };
-        getLockService(BiometricsLockService.class)
-                .authenticate(newContext, delegate);
+
+        BiometricsLockService service = getLockService(LockServiceHandle.BIOMETRICS);
+
+        if (service == null) {
+            eventListener.onResolutionRequired(ERROR_CODE_FINGERPRINTS_MISSING_HARDWARE);
+            return;
+        }
+
+        if (sessionKeyRequired)
+            service.authenticateStrong(newContext, delegate);
+        else
+            service.authenticate(newContext, delegate);
     }
 
     public void attemptFingerprintUnlock(final UnlockDelegate eventListener) {
@@ -189,11 +624,31 @@ public class AppLock {
             }
         };
 
-        getLockService(FingerprintLockService.class)
-                .authenticate(context, delegate);
+        FingerprintLockService service = getLockService(LockServiceHandle.FINGERPRINT);
+
+        if (service == null) {
+            eventListener.onResolutionRequired(ERROR_CODE_FINGERPRINTS_MISSING_HARDWARE);
+            return;
+        }
+
+        service.authenticate(context, delegate);
     }
 
     public void attemptPINUnlock(String pin, final UnlockDelegate eventListener) {
+        char[] chars = pin.toCharArray();
+
+        try {
+            attemptPINUnlock(chars, chars.length, eventListener);
+        } finally {
+            CryptoUtils.wipe(chars);
+        }
+    }
+
+    /**
+     * Attempt to unlock with the first length chars of pin. The caller is free to wipe pin
+     * as soon as this returns.
+     */
+    public void attemptPINUnlock(char[] pin, int length, final UnlockDelegate eventListener) {
         if (handleFailureBlocking(eventListener))
             return;
 
@@ -208,8 +663,19 @@ public class AppLock {
                 onUnlockFailed(context.getString(R.string.applock__unlock_error_match_failed));
             }
 
+            @Override
+            public void onPINKeyLost() {
+                // Not a failure: throttling the correct PIN would lock the user out for good
+                onKeyInvalidated(LockServiceHandle.PIN, true);
+
+                eventListener.onResolutionRequired(ERROR_CODE_PIN_KEY_LOST);
+            }
+
             @Override
             public void onPINMatches() {
+                // The PIN vouches for whoever added the biometric that invalidated a key
+                clearKeyInvalidations();
+
                 onUnlockSuccessful(eventListener);
             }
 
@@ -218,72 +684,129 @@ public class AppLock {
             }
         };
 
-        getLockService(PINLockService.class)
-                .authenticate(context, pin, delegate);
+        PINLockService service = getLockService(LockServiceHandle.PIN);
+
+        if (service.authenticate(context, pin, length, delegate))
+            return;
+
+        // Rejected, either because a previous verification's result is still on its way, or
+        // because the crypto Executor is saturated. Either way, don't let the entry vanish silently.
+        String message = service.isAuthenticating()
+                ? context.getString(R.string.applock__unlock_pin_verification_pending)
+                : context.getString(R.string.applock__unlock_pin_verification_busy);
+
+        eventListener.onAuthenticationHelp(HELP_CODE_PIN_VERIFICATION_BUSY, message);
     }
 
     /**
-     * @return true if failure blocking is enabled
+     * @return true if attempts are currently blocked by a lockout
      */
     private boolean handleFailureBlocking(final UnlockDelegate eventListener) {
-        if (isUnlockFailureBlockEnabled()) {
-            unlockAttemptsCount++;
+        long remainingMs = failureThrottle.getRemainingLockoutMs();
 
-            if (getFailureDelayMs() < System.currentTimeMillis() - getUnlockFailureBlockStart())
-                resetUnlockFailure();
-            else {
-                String message = String.format(
-                        context.getString(R.string.applock__unlock_error_retry_limit_exceeded),
-                        formatTimeRemaining());
+        if (remainingMs == 0) {
+            if (failureThrottle.hasExpiredLockout())
+                clearExpiredLockout();
 
-                if (eventListener != null)
-                    eventListener.onFailureLimitExceeded(message);
-
-                return true;
-            }
+            return false;
         }
 
-        return false;
+        String message = String.format(
+                context.getString(R.string.applock__unlock_error_retry_limit_exceeded),
+                formatTimeRemaining(remainingMs));
+
+        if (eventListener != null)
+            eventListener.onFailureLimitExceeded(message);
+
+        return true;
     }
 
     protected void handleUnlockFailure(String message, UnlockDelegate eventListener) {
-        this.unlockAttemptsCount++;
+        onUnlockFailed();
 
         if (eventListener != null)
             eventListener.onFailureLimitExceeded(message);
+    }
 
-        if (context.getResources().getInteger(R.integer.applock__max_retry_count) < unlockAttemptsCount)
-            onFailureExceedsLimit();
+    // Every throttle change is applied while holding the throttle, so concurrent changes reach the
+    // persistence in the order they were made, and a stale encoding can never overwrite a newer one
+
+    protected void clearExpiredLockout() {
+        synchronized (failureThrottle) {
+            WriteBehindPreferences.Transaction transaction = persistence.edit();
+
+            if (failureThrottle.onLockoutExpired(transaction))
+                transaction.apply();
+        }
+    }
+
+    protected void onUnlockFailed() {
+        synchronized (failureThrottle) {
+            WriteBehindPreferences.Transaction transaction = persistence.edit();
+
+            failureThrottle.onFailure(transaction);
+
+            transaction.apply();
+        }
     }
 
     public SharedPreferences getPreferences() {
         return context.getSharedPreferences(PREFS, 0);
     }
 
-    protected void onFailureExceedsLimit() {
-        getPreferences()
-                .edit()
-                .putLong(PREF_UNLOCK_FAILURE_TIME, System.currentTimeMillis())
-                .commit();
+    /**
+     * @return the write-behind view of the AppLock preferences. All AppLock state should be
+     * read and written through this instead of calling commit() on getPreferences().
+     */
+    public WriteBehindPreferences getPersistence() {
+        return persistence;
+    }
+
+    /**
+     * Block until all pending AppLock state has been written to disk. Only use this
+     * where losing the last few writes to a process death is not acceptable.
+     *
+     * @return true if everything was persisted before the timeout
+     */
+    public boolean awaitPersisted(long timeoutMs) {
+        return persistence.awaitPersisted(timeoutMs);
     }
 
+    /**
+     * @return true if unlock attempts are currently blocked after too many failures
+     */
     public boolean isUnlockFailureBlockEnabled() {
-        return context.getResources().getInteger(R.integer.applock__max_retry_count) < unlockAttemptsCount
-                || System.currentTimeMillis() - getUnlockFailureBlockStart() < getFailureDelayMs();
+        return failureThrottle.isLockedOut();
     }
 
-    protected long getUnlockFailureBlockStart() {
-        return getPreferences()
-                .getLong(PREF_UNLOCK_FAILURE_TIME, 0);
+    public FailureThrottle getFailureThrottle() {
+        return failureThrottle;
     }
 
     protected void onUnlockSuccessful(UnlockDelegate eventListener) {
-        getPreferences()
-                .edit()
-                .putLong(PREF_UNLOCK_SUCCESS_TIME, System.currentTimeMillis())
-                .commit();
+        long now = System.currentTimeMillis();
 
-        resetUnlockFailure();
+        synchronized (this) {
+            this.lockState = getLockState().withUnlockSuccessTime(now);
+
+            WriteBehindPreferences.Transaction transaction = persistence.edit()
+                    .putLong(PREF_UNLOCK_SUCCESS_TIME, now);
+
+            synchronized (failureThrottle) {
+                failureThrottle.reset(transaction);
+
+                transaction.apply();
+            }
+
+            this.unlockPending = false;
+        }
+
+        inactivityMonitor.onUserInteraction();
+
+        SecretVault secretVault = this.secretVault;
+
+        if (secretVault != null)
+            secretVault.onUnlocked();
 
         if (eventListener != null)
             eventListener.onUnlockSuccessful();
@@ -294,23 +817,126 @@ public class AppLock {
      * AppLock the next time they are eligible to unlock.
      */
     public void setAuthenticationRequired() {
-        getPreferences()
-                .edit()
-                .putLong(PREF_UNLOCK_SUCCESS_TIME, 0)
-                .commit();
+        synchronized (this) {
+            this.lockState = getLockState().withUnlockSuccessTime(0);
+
+            persistence.edit()
+                    .putLong(PREF_UNLOCK_SUCCESS_TIME, 0)
+                    .apply();
+
+            this.unlockPending = true;
+        }
+
+        authorizationGrants.revokeAll();
+
+        SessionKey sessionKey = this.sessionKey;
+
+        if (sessionKey != null)
+            sessionKey.close();
+
+        SecretVault secretVault = this.secretVault;
+
+        if (secretVault != null)
+            secretVault.onLocked();
+    }
+
+    /**
+     * Get the vault of secrets that are decrypted when the user unlocks and wiped when the app
+     * locks. It's only created on first use; if the app isn't locked at that point, it's unlocked.
+     */
+    public SecretVault getSecretVault() {
+        SecretVault secretVault = this.secretVault;
+
+        if (secretVault != null)
+            return secretVault;
+
+        synchronized (this) {
+            if (this.secretVault == null) {
+                boolean unlocked = !isUnlockPending();
+
+                this.secretVault = new SecretVault(context, configuration.vaultCacheEntries, unlocked);
+
+                if (unlocked)
+                    this.secretVault.onUnlocked();
+            }
+
+            return this.secretVault;
+        }
+    }
+
+    /**
+     * Get the keystore key whose validity window is opened by the strong biometric or device
+     * credential unlocks that follow this call, and closed again when the app locks. It's only
+     * created on first use, so apps that don't need it pay nothing.
+     */
+    public SessionKey getSessionKey() {
+        SessionKey sessionKey = this.sessionKey;
+
+        if (sessionKey != null)
+            return sessionKey;
+
+        synchronized (this) {
+            if (this.sessionKey == null)
+                this.sessionKey = new SessionKey(SessionKey.KEY_ALIAS, configuration.sessionKeyValiditySeconds);
+
+            return this.sessionKey;
+        }
+    }
+
+    /**
+     * @return the milliseconds callers can still run SessionKey operations for without a prompt
+     */
+    public long getSessionKeyRemainingValidityMs() {
+        SessionKey sessionKey = this.sessionKey;
+
+        return sessionKey == null
+                ? 0
+                : sessionKey.getRemainingValidityMs();
+    }
+
+    /**
+     * Issue a time-boxed grant for scope, e.g. after a successful unlock, so the operations in that
+     * scope can run without prompting again. All grants are revoked when the app locks.
+     *
+     * @param ttlMs   the milliseconds the grant is valid for
+     * @param maxUses the number of operations it authorizes, or AuthorizationGrants.UNLIMITED_USES
+     */
+    public void grantAuthorization(String scope, long ttlMs, int maxUses) {
+        authorizationGrants.grant(scope, ttlMs, maxUses);
+    }
+
+    /**
+     * Use the grant for scope once. This is an in-memory lookup, so it's cheap to call per operation.
+     *
+     * @return true if the operation is authorized without unlocking
+     */
+    public boolean consumeAuthorization(String scope) {
+        return authorizationGrants.consume(scope);
+    }
+
+    public boolean isAuthorized(String scope) {
+        return authorizationGrants.isGranted(scope);
+    }
+
+    public void revokeAuthorization(String scope) {
+        authorizationGrants.revoke(scope);
+    }
+
+    public AuthorizationGrants getAuthorizationGrants() {
+        return authorizationGrants;
     }
 
     protected void resetUnlockFailure() {
-        unlockAttemptsCount = 1;
+        synchronized (failureThrottle) {
+            WriteBehindPreferences.Transaction transaction = persistence.edit();
 
-        getPreferences()
-                .edit()
-                .putLong(PREF_UNLOCK_FAILURE_TIME, 0)
-                .commit();
+            failureThrottle.reset(transaction);
+
+            transaction.apply();
+        }
     }
 
-    protected String formatTimeRemaining() {
-        long millis = getFailureDelayMs() - (System.currentTimeMillis() - getUnlockFailureBlockStart());
+    protected String formatTimeRemaining(long millis) {
         long seconds = TimeUnit.MILLISECONDS.toSeconds(millis) - TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(millis));
 
         if (TimeUnit.MILLISECONDS.toMinutes(millis) < 1)
@@ -319,11 +945,6 @@ public class AppLock {
             return String.format("%d minutes, %d seconds", TimeUnit.MILLISECONDS.toMinutes(millis), seconds);
     }
 
-    protected long getFailureDelayMs() {
-        return TimeUnit.MINUTES.toMillis(context.getResources()
-                .getInteger(R.integer.applock__failure_retry_delay));
-    }
-
     /**
      * This will remove all PIN and/or Fingerprint enrollment data.
      * Users will need to re-enroll in AppLock after this call.
@@ -332,17 +953,38 @@ public class AppLock {
         resetUnlockFailure();
         setAuthenticationRequired();
 
-        for (LockService service : lockServices.values())
-            service.invalidateEnrollments(context);
+        for (LockServiceHandle<?> handle : lockServices.getHandlesByCost())
+            lockServices.get(handle).invalidateEnrollments(context);
+
+        awaitPersisted(INVALIDATION_PERSIST_TIMEOUT_MS);
     }
 
     public void cancelPendingAuthentications() {
-        for (LockService service : lockServices.values())
-            service.cancelPendingAuthentications(context);
+        // A service that was never instantiated has nothing pending
+        for (LockServiceHandle<?> handle : lockServices.getHandlesByCost()) {
+            LockService service = lockServices.peek(handle);
+
+            if (service != null)
+                service.cancelPendingAuthentications(context);
+        }
     }
 
+    /**
+     * @return the registered LockService of that class, or null if it isn't registered
+     */
     public <T extends LockService> T getLockService(Class<T> named) {
-        return (T) lockServices.get(named);
+        return lockServices.get(named);
+    }
+
+    /**
+     * @return the LockService for handle, or null if it isn't registered
+     */
+    public <T extends LockService> T getLockService(LockServiceHandle<T> handle) {
+        return lockServices.get(handle);
+    }
+
+    public boolean isLockServiceRegistered(LockServiceHandle<?> handle) {
+        return lockServices.isRegistered(handle);
     }
 
     public interface UnlockDelegate {
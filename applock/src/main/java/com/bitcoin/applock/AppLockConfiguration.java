@@ -0,0 +1,212 @@
+package com.bitcoin.applock;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import com.bitcoin.applock.services.LockServiceHandle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The immutable settings AppLock runs with. Defaults come from the applock__ resources, and
+ * can be overridden through the Builder when passing it to AppLock.initialize(Context, AppLockConfiguration).
+ * Values are resolved once so that hot paths only read fields.
+ */
+public final class AppLockConfiguration {
+
+    public final long unlockValidityMs;
+    public final long inactivityTimeoutMs;
+    public final int maxRetryCount;
+    public final long failureRetryDelayMs;
+    public final long failureRetryDelayMaxMs;
+    public final int pinLength;
+    public final boolean passwordCharactersEnabled;
+    public final boolean fingerprintServiceEnabled;
+    public final boolean unlockActivityReturnAllowed;
+    public final String pinKeyDerivationAlgorithm;
+    public final int pinKeyDerivationTargetMs;
+    public final int sessionKeyValiditySeconds;
+    public final int vaultCacheEntries;
+    public final List<LockServiceHandle<?>> lockServices;
+
+    protected AppLockConfiguration(Builder builder) {
+        this.unlockValidityMs = builder.unlockValidityMs;
+        this.inactivityTimeoutMs = builder.inactivityTimeoutMs;
+        this.maxRetryCount = builder.maxRetryCount;
+        this.failureRetryDelayMs = builder.failureRetryDelayMs;
+        this.failureRetryDelayMaxMs = builder.failureRetryDelayMaxMs;
+        this.pinLength = builder.pinLength;
+        this.passwordCharactersEnabled = builder.passwordCharactersEnabled;
+        this.fingerprintServiceEnabled = builder.fingerprintServiceEnabled;
+        this.unlockActivityReturnAllowed = builder.unlockActivityReturnAllowed;
+        this.pinKeyDerivationAlgorithm = builder.pinKeyDerivationAlgorithm;
+        this.pinKeyDerivationTargetMs = builder.pinKeyDerivationTargetMs;
+        this.sessionKeyValiditySeconds = builder.sessionKeyValiditySeconds;
+        this.vaultCacheEntries = builder.vaultCacheEntries;
+        this.lockServices = Collections.unmodifiableList(new ArrayList<LockServiceHandle<?>>(builder.lockServices));
+    }
+
+    /**
+     * @return the configuration defined by the applock__ resources
+     */
+    public static AppLockConfiguration fromResources(Context context) {
+        return new Builder(context)
+                .build();
+    }
+
+    public static class Builder {
+
+        protected long unlockValidityMs;
+        protected long inactivityTimeoutMs;
+        protected int maxRetryCount;
+        protected long failureRetryDelayMs;
+        protected long failureRetryDelayMaxMs;
+        protected int pinLength;
+        protected boolean passwordCharactersEnabled;
+        protected boolean fingerprintServiceEnabled;
+        protected boolean unlockActivityReturnAllowed;
+        protected String pinKeyDerivationAlgorithm;
+        protected int pinKeyDerivationTargetMs;
+        protected int sessionKeyValiditySeconds;
+        protected int vaultCacheEntries;
+        protected final ArrayList<LockServiceHandle<?>> lockServices = new ArrayList<LockServiceHandle<?>>();
+
+        /**
+         * Start from the values defined by the applock__ resources.
+         */
+        public Builder(Context context) {
+            Resources resources = context.getResources();
+
+            this.unlockValidityMs = TimeUnit.MINUTES.toMillis(resources.getInteger(R.integer.applock__activity_lock_reenable_minutes));
+            this.inactivityTimeoutMs = TimeUnit.MINUTES.toMillis(resources.getInteger(R.integer.applock__inactivity_lock_minutes));
+            this.maxRetryCount = resources.getInteger(R.integer.applock__max_retry_count);
+            this.failureRetryDelayMs = TimeUnit.MINUTES.toMillis(resources.getInteger(R.integer.applock__failure_retry_delay));
+            this.failureRetryDelayMaxMs = TimeUnit.MINUTES.toMillis(resources.getInteger(R.integer.applock__failure_retry_delay_max));
+            this.pinLength = resources.getInteger(R.integer.applock__input_pin_item_count);
+            this.passwordCharactersEnabled = resources.getBoolean(R.bool.applock__item_password_chars_enabled);
+            this.fingerprintServiceEnabled = resources.getBoolean(R.bool.applock__fingerprint_service_enabled);
+            this.unlockActivityReturnAllowed = resources.getBoolean(R.bool.applock__unlock_activity_return_allowed);
+            this.pinKeyDerivationAlgorithm = resources.getString(R.string.applock__pin_key_derivation_algorithm);
+            this.pinKeyDerivationTargetMs = resources.getInteger(R.integer.applock__pin_key_derivation_target_ms);
+            this.sessionKeyValiditySeconds = resources.getInteger(R.integer.applock__session_key_validity_seconds);
+            this.vaultCacheEntries = resources.getInteger(R.integer.applock__vault_cache_entries);
+
+            lockServices.add(LockServiceHandle.PIN);
+            lockServices.add(LockServiceHandle.BIOMETRICS);
+            lockServices.add(LockServiceHandle.FINGERPRINT);
+        }
+
+        /**
+         * Add a LockService to the ones AppLock checks for enrollment. The PIN, biometrics, and
+         * fingerprint services are registered by default.
+         */
+        public Builder registerLockService(LockServiceHandle<?> handle) {
+            if (!lockServices.contains(handle))
+                lockServices.add(handle);
+
+            return this;
+        }
+
+        public Builder unregisterLockService(LockServiceHandle<?> handle) {
+            lockServices.remove(handle);
+            return this;
+        }
+
+        public Builder setUnlockValidityMs(long unlockValidityMs) {
+            this.unlockValidityMs = unlockValidityMs;
+            return this;
+        }
+
+        /**
+         * @param inactivityTimeoutMs the idle time after which the app is locked, or 0 to disable the idle lock
+         */
+        public Builder setInactivityTimeoutMs(long inactivityTimeoutMs) {
+            this.inactivityTimeoutMs = inactivityTimeoutMs;
+            return this;
+        }
+
+        public Builder setMaxRetryCount(int maxRetryCount) {
+            this.maxRetryCount = maxRetryCount;
+            return this;
+        }
+
+        public Builder setFailureRetryDelayMs(long failureRetryDelayMs) {
+            this.failureRetryDelayMs = failureRetryDelayMs;
+            return this;
+        }
+
+        public Builder setFailureRetryDelayMaxMs(long failureRetryDelayMaxMs) {
+            this.failureRetryDelayMaxMs = failureRetryDelayMaxMs;
+            return this;
+        }
+
+        public Builder setPINLength(int pinLength) {
+            this.pinLength = pinLength;
+            return this;
+        }
+
+        public Builder setPasswordCharactersEnabled(boolean passwordCharactersEnabled) {
+            this.passwordCharactersEnabled = passwordCharactersEnabled;
+            return this;
+        }
+
+        public Builder setFingerprintServiceEnabled(boolean fingerprintServiceEnabled) {
+            this.fingerprintServiceEnabled = fingerprintServiceEnabled;
+            return this;
+        }
+
+        public Builder setUnlockActivityReturnAllowed(boolean unlockActivityReturnAllowed) {
+            this.unlockActivityReturnAllowed = unlockActivityReturnAllowed;
+            return this;
+        }
+
+        public Builder setPINKeyDerivationAlgorithm(String pinKeyDerivationAlgorithm) {
+            this.pinKeyDerivationAlgorithm = pinKeyDerivationAlgorithm;
+            return this;
+        }
+
+        public Builder setPINKeyDerivationTargetMs(int pinKeyDerivationTargetMs) {
+            this.pinKeyDerivationTargetMs = pinKeyDerivationTargetMs;
+            return this;
+        }
+
+        /**
+         * @param sessionKeyValiditySeconds how long the SessionKey stays usable after an authentication.
+         *                                  Only applies to keys created after the change.
+         */
+        public Builder setSessionKeyValiditySeconds(int sessionKeyValiditySeconds) {
+            this.sessionKeyValiditySeconds = sessionKeyValiditySeconds;
+            return this;
+        }
+
+        /**
+         * @param vaultCacheEntries the number of decrypted SecretVault entries kept in memory at once
+         */
+        public Builder setVaultCacheEntries(int vaultCacheEntries) {
+            this.vaultCacheEntries = vaultCacheEntries;
+            return this;
+        }
+
+        public AppLockConfiguration build() {
+            if (maxRetryCount < 1)
+                throw new RuntimeException("maxRetryCount must be at least 1");
+
+            if (pinLength < 1)
+                throw new RuntimeException("pinLength must be at least 1");
+
+            if (sessionKeyValiditySeconds < 1)
+                throw new RuntimeException("sessionKeyValiditySeconds must be at least 1");
+
+            if (vaultCacheEntries < 1)
+                throw new RuntimeException("vaultCacheEntries must be at least 1");
+
+            if (!lockServices.contains(LockServiceHandle.PIN))
+                throw new RuntimeException("The PIN LockService can't be unregistered");
+
+            return new AppLockConfiguration(this);
+        }
+    }
+}
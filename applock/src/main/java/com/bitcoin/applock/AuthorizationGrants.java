@@ -0,0 +1,128 @@
+package com.bitcoin.applock;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named, time-boxed authorizations issued after a successful unlock, so a batch of sensitive
+ * operations in the same scope (e.g. "sign") can share a single prompt. Grants only ever live in
+ * memory, expire against elapsedRealtime so clock changes can't extend them, and are all revoked
+ * whenever the app locks.
+ */
+public class AuthorizationGrants {
+
+    public static final int UNLIMITED_USES = -1;
+
+    protected final ConcurrentHashMap<String, Grant> grants = new ConcurrentHashMap<String, Grant>();
+
+    /**
+     * Issue a grant for scope, replacing any existing one.
+     *
+     * @param ttlMs   the milliseconds the grant is valid for
+     * @param maxUses the number of times the grant can be consumed, or UNLIMITED_USES
+     */
+    public void grant(String scope, long ttlMs, int maxUses) {
+        if (ttlMs <= 0)
+            throw new RuntimeException("Grant TTL must be positive: " + ttlMs);
+
+        if (maxUses == 0 || maxUses < UNLIMITED_USES)
+            throw new RuntimeException("Grant use count must be positive or UNLIMITED_USES: " + maxUses);
+
+        grants.put(scope, new Grant(SystemClock.elapsedRealtime() + ttlMs, maxUses));
+    }
+
+    /**
+     * @return true if scope has a grant that hasn't expired or been used up, without consuming it
+     */
+    public boolean isGranted(String scope) {
+        Grant grant = getValidGrant(scope);
+
+        return grant != null && grant.getRemainingUses() != 0;
+    }
+
+    /**
+     * Use the grant for scope once, if it's still valid.
+     *
+     * @return true if the operation is authorized
+     */
+    public boolean consume(String scope) {
+        Grant grant = getValidGrant(scope);
+
+        if (grant == null)
+            return false;
+
+        if (grant.consume())
+            return true;
+
+        grants.remove(scope, grant);
+
+        return false;
+    }
+
+    /**
+     * @return the milliseconds until the grant for scope expires, or 0 if there's none
+     */
+    public long getRemainingMs(String scope) {
+        Grant grant = getValidGrant(scope);
+
+        return grant == null
+                ? 0
+                : Math.max(0, grant.expiresAtElapsedMs - SystemClock.elapsedRealtime());
+    }
+
+    public void revoke(String scope) {
+        grants.remove(scope);
+    }
+
+    public void revokeAll() {
+        grants.clear();
+    }
+
+    protected Grant getValidGrant(String scope) {
+        Grant grant = grants.get(scope);
+
+        if (grant == null)
+            return null;
+
+        if (grant.expiresAtElapsedMs <= SystemClock.elapsedRealtime()) {
+            // Only removes it if it hasn't been replaced in the meantime
+            grants.remove(scope, grant);
+
+            return null;
+        }
+
+        return grant;
+    }
+
+    protected static final class Grant {
+
+        final long expiresAtElapsedMs;
+        final AtomicInteger remainingUses;
+
+        Grant(long expiresAtElapsedMs, int maxUses) {
+            this.expiresAtElapsedMs = expiresAtElapsedMs;
+            this.remainingUses = new AtomicInteger(maxUses);
+        }
+
+        int getRemainingUses() {
+            return remainingUses.get();
+        }
+
+        boolean consume() {
+            while (true) {
+                int uses = remainingUses.get();
+
+                if (uses == UNLIMITED_USES)
+                    return true;
+
+                if (uses == 0)
+                    return false;
+
+                if (remainingUses.compareAndSet(uses, uses - 1))
+                    return true;
+            }
+        }
+    }
+}
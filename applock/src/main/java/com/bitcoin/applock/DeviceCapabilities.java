@@ -0,0 +1,141 @@
+package com.bitcoin.applock;
+
+import android.Manifest;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import androidx.biometric.BiometricManager;
+import androidx.core.content.ContextCompat;
+import androidx.core.hardware.fingerprint.FingerprintManagerCompat;
+
+/**
+ * An immutable snapshot of the device's authentication capabilities. Every value here costs
+ * a binder call to probe, so a snapshot is probed once off the main thread and cached by
+ * AppLock until something that could change it happens.
+ */
+public final class DeviceCapabilities {
+
+    public static final int BIOMETRIC_AUTHENTICATORS = BiometricManager.Authenticators.BIOMETRIC_WEAK
+            | BiometricManager.Authenticators.DEVICE_CREDENTIAL;
+
+    private final boolean deviceSecure;
+    private final int biometricStatus;
+    private final boolean fingerprintHardwareDetected;
+    private final boolean fingerprintsEnrolled;
+    private final boolean fingerprintPermissionGranted;
+    private final boolean probeFailed;
+    private final boolean stale;
+
+    DeviceCapabilities(
+            boolean deviceSecure,
+            int biometricStatus,
+            boolean fingerprintHardwareDetected,
+            boolean fingerprintsEnrolled,
+            boolean fingerprintPermissionGranted,
+            boolean probeFailed) {
+        this(deviceSecure, biometricStatus, fingerprintHardwareDetected, fingerprintsEnrolled, fingerprintPermissionGranted, probeFailed, false);
+    }
+
+    private DeviceCapabilities(
+            boolean deviceSecure,
+            int biometricStatus,
+            boolean fingerprintHardwareDetected,
+            boolean fingerprintsEnrolled,
+            boolean fingerprintPermissionGranted,
+            boolean probeFailed,
+            boolean stale) {
+        this.deviceSecure = deviceSecure;
+        this.biometricStatus = biometricStatus;
+        this.fingerprintHardwareDetected = fingerprintHardwareDetected;
+        this.fingerprintsEnrolled = fingerprintsEnrolled;
+        this.fingerprintPermissionGranted = fingerprintPermissionGranted;
+        this.probeFailed = probeFailed;
+        this.stale = stale;
+    }
+
+    /**
+     * @return the same snapshot, marked as superseded by a probe that hasn't finished yet
+     */
+    DeviceCapabilities asStale() {
+        if (stale)
+            return this;
+
+        return new DeviceCapabilities(deviceSecure, biometricStatus, fingerprintHardwareDetected, fingerprintsEnrolled, fingerprintPermissionGranted, probeFailed, true);
+    }
+
+    /**
+     * Query the system services for a new snapshot. This makes several binder calls and
+     * should not be called from the main thread.
+     *
+     * @param probeFingerprint false to skip the deprecated fingerprint APIs entirely, leaving
+     * those capabilities unavailable
+     */
+    static DeviceCapabilities probe(Context context, boolean probeFingerprint) {
+        try {
+            KeyguardManager keyguard = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+            FingerprintManagerCompat fingerprintManager = probeFingerprint
+                    ? FingerprintManagerCompat.from(context)
+                    : null;
+
+            return new DeviceCapabilities(
+                    keyguard != null && keyguard.isDeviceSecure(),
+                    BiometricManager.from(context).canAuthenticate(BIOMETRIC_AUTHENTICATORS),
+                    fingerprintManager != null && fingerprintManager.isHardwareDetected(),
+                    fingerprintManager != null && fingerprintManager.hasEnrolledFingerprints(),
+                    probeFingerprint && ContextCompat.checkSelfPermission(context, Manifest.permission.USE_FINGERPRINT) == PackageManager.PERMISSION_GRANTED,
+                    false);
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return new DeviceCapabilities(false, BiometricManager.BIOMETRIC_STATUS_UNKNOWN, false, false, false, true);
+        }
+    }
+
+    /**
+     * @return true if the device has a secure screen lock (PIN, pattern, or password)
+     */
+    public boolean isDeviceSecure() {
+        return deviceSecure;
+    }
+
+    /**
+     * @return the BiometricManager.canAuthenticate result for BIOMETRIC_AUTHENTICATORS
+     */
+    public int getBiometricStatus() {
+        return biometricStatus;
+    }
+
+    public boolean isBiometricAuthenticationAvailable() {
+        return deviceSecure && biometricStatus == BiometricManager.BIOMETRIC_SUCCESS;
+    }
+
+    public boolean isFingerprintHardwareDetected() {
+        return fingerprintHardwareDetected;
+    }
+
+    public boolean hasEnrolledFingerprints() {
+        return fingerprintsEnrolled;
+    }
+
+    public boolean isFingerprintPermissionGranted() {
+        return fingerprintPermissionGranted;
+    }
+
+    /**
+     * @return true if probing threw, in which case every capability reads as unavailable and
+     * the snapshot is never cached
+     */
+    public boolean isProbeFailed() {
+        return probeFailed;
+    }
+
+    /**
+     * @return true if something that could change these capabilities happened since they were
+     * probed, and a new probe is running in the background. Still the best answer available
+     * without a binder call; use AppLock.refreshDeviceCapabilities(Runnable) to wait for the new one.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+}
@@ -0,0 +1,209 @@
+package com.bitcoin.applock;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+import com.bitcoin.applock.utils.WriteBehindPreferences;
+
+/**
+ * Throttles unlock attempts after repeated failures. Every maxAttempts consecutive failures
+ * lock the user out, for baseLockoutMs the first time and twice as long every time after that,
+ * up to maxLockoutMs. Only a successful unlock resets the backoff.
+ *
+ * Deadlines are measured with SystemClock.elapsedRealtime(), so changing the device clock can't
+ * shorten a lockout. Since that clock restarts on boot, a lockout persisted during a previous boot
+ * is restarted in full. The whole state is persisted as a single preference, so every change is
+ * one atomic write, and checking it never leaves memory.
+ */
+public class FailureThrottle {
+
+    static final String PREF_FAILURE_THROTTLE = "pin__failure_throttle";
+    private static final String PREF_LEGACY_UNLOCK_FAILURE_TIME = "pin__unlock_failure_time";
+    private static final int BOOT_COUNT_UNKNOWN = -1;
+    private static final int MAX_BACKOFF_SHIFT = 30;
+
+    protected final int maxAttempts;
+    protected final long baseLockoutMs;
+    protected final long maxLockoutMs;
+
+    protected int failedAttempts = 0;
+    protected int lockouts = 0;
+    protected long lockoutDurationMs = 0;
+    protected volatile long lockoutDeadlineElapsedMs = 0;
+    protected int bootCount = BOOT_COUNT_UNKNOWN;
+
+    public FailureThrottle(int maxAttempts, long baseLockoutMs, long maxLockoutMs) {
+        this.maxAttempts = maxAttempts;
+        this.baseLockoutMs = baseLockoutMs;
+        this.maxLockoutMs = maxLockoutMs;
+    }
+
+    /**
+     * Restore the persisted state, restarting any lockout that was started during a previous boot.
+     */
+    synchronized void load(Context context, WriteBehindPreferences persistence) {
+        this.bootCount = readBootCount(context);
+
+        String encoded = persistence.getString(PREF_FAILURE_THROTTLE, null);
+
+        if (encoded == null)
+            return;
+
+        int persistedBootCount;
+
+        try {
+            String[] values = encoded.split(",");
+
+            this.failedAttempts = Integer.parseInt(values[0]);
+            this.lockouts = Integer.parseInt(values[1]);
+            this.lockoutDurationMs = Long.parseLong(values[2]);
+            this.lockoutDeadlineElapsedMs = Long.parseLong(values[3]);
+
+            persistedBootCount = Integer.parseInt(values[4]);
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return;
+        }
+
+        if (lockoutDeadlineElapsedMs == 0)
+            return;
+
+        long now = SystemClock.elapsedRealtime();
+
+        // Without a boot count, a deadline further away than the lockout's own duration
+        // can only mean the clock it was measured with has restarted
+        boolean rebooted = bootCount == BOOT_COUNT_UNKNOWN || persistedBootCount == BOOT_COUNT_UNKNOWN
+                ? lockoutDurationMs < lockoutDeadlineElapsedMs - now
+                : bootCount != persistedBootCount;
+
+        if (rebooted)
+            this.lockoutDeadlineElapsedMs = now + lockoutDurationMs;
+        else if (lockoutDeadlineElapsedMs <= now)
+            this.lockoutDeadlineElapsedMs = 0;
+        else
+            return;
+
+        persistence.edit()
+                .putString(PREF_FAILURE_THROTTLE, encode())
+                .apply();
+    }
+
+    /**
+     * @return the time left until attempts are allowed again, or 0 if they are
+     */
+    public long getRemainingLockoutMs() {
+        long deadline = lockoutDeadlineElapsedMs;
+
+        if (deadline == 0)
+            return 0;
+
+        long remainingMs = deadline - SystemClock.elapsedRealtime();
+
+        return remainingMs < 0 ? 0 : remainingMs;
+    }
+
+    public boolean isLockedOut() {
+        return 0 < getRemainingLockoutMs();
+    }
+
+    /**
+     * @return true if a lockout has run out but is still remembered
+     */
+    public boolean hasExpiredLockout() {
+        return lockoutDeadlineElapsedMs != 0 && !isLockedOut();
+    }
+
+    public synchronized int getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    public synchronized int getLockouts() {
+        return lockouts;
+    }
+
+    /**
+     * Record a failed attempt, starting the next lockout if it was one too many.
+     *
+     * @return true if a lockout was started
+     */
+    synchronized boolean onFailure(WriteBehindPreferences.Transaction into) {
+        boolean lockoutStarted = false;
+
+        this.failedAttempts++;
+
+        if (maxAttempts <= failedAttempts) {
+            this.lockoutDurationMs = getLockoutDurationMs(lockouts);
+            this.lockoutDeadlineElapsedMs = SystemClock.elapsedRealtime() + lockoutDurationMs;
+            this.lockouts++;
+            this.failedAttempts = 0;
+
+            lockoutStarted = true;
+        }
+
+        persist(into);
+
+        return lockoutStarted;
+    }
+
+    /**
+     * Forget a lockout that has run out, so it can't be restarted after the next reboot.
+     *
+     * @return true if there was one to forget
+     */
+    synchronized boolean onLockoutExpired(WriteBehindPreferences.Transaction into) {
+        if (lockoutDeadlineElapsedMs == 0 || isLockedOut())
+            return false;
+
+        this.lockoutDeadlineElapsedMs = 0;
+
+        persist(into);
+
+        return true;
+    }
+
+    synchronized void reset(WriteBehindPreferences.Transaction into) {
+        this.failedAttempts = 0;
+        this.lockouts = 0;
+        this.lockoutDurationMs = 0;
+        this.lockoutDeadlineElapsedMs = 0;
+
+        persist(into);
+    }
+
+    protected long getLockoutDurationMs(int previousLockouts) {
+        long durationMs = baseLockoutMs << Math.min(previousLockouts, MAX_BACKOFF_SHIFT);
+
+        return durationMs < baseLockoutMs || maxLockoutMs < durationMs
+                ? Math.max(maxLockoutMs, baseLockoutMs)
+                : durationMs;
+    }
+
+    private void persist(WriteBehindPreferences.Transaction into) {
+        into.putString(PREF_FAILURE_THROTTLE, encode())
+                .remove(PREF_LEGACY_UNLOCK_FAILURE_TIME);
+    }
+
+    private String encode() {
+        return failedAttempts
+                + "," + lockouts
+                + "," + lockoutDurationMs
+                + "," + lockoutDeadlineElapsedMs
+                + "," + bootCount;
+    }
+
+    private static int readBootCount(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+            return BOOT_COUNT_UNKNOWN;
+
+        try {
+            return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, BOOT_COUNT_UNKNOWN);
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return BOOT_COUNT_UNKNOWN;
+        }
+    }
+}
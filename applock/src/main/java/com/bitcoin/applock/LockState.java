@@ -0,0 +1,83 @@
+package com.bitcoin.applock;
+
+/**
+ * An immutable snapshot of everything AppLock needs to decide whether an unlock is required.
+ * A new instance is published on every write, so readers only ever see a consistent state.
+ *
+ * Enrollment is resolved lazily, one LockService at a time, so a service's enrollment flag is
+ * only meaningful once its bit is also set in the known flags. A service whose keystore key was
+ * invalidated since the user last unlocked with their PIN has its bit set in the invalidated flags.
+ */
+public final class LockState {
+
+    public static final LockState EMPTY = new LockState(0, 0, 0, 0);
+
+    private final int enrollmentFlags;
+    private final int knownEnrollmentFlags;
+    private final int keyInvalidatedFlags;
+    private final long unlockSuccessTime;
+
+    LockState(int enrollmentFlags, int knownEnrollmentFlags, int keyInvalidatedFlags, long unlockSuccessTime) {
+        this.enrollmentFlags = enrollmentFlags;
+        this.knownEnrollmentFlags = knownEnrollmentFlags;
+        this.keyInvalidatedFlags = keyInvalidatedFlags;
+        this.unlockSuccessTime = unlockSuccessTime;
+    }
+
+    /**
+     * @return a bitmask of the LockServices the user is known to be enrolled in
+     */
+    public int getEnrollmentFlags() {
+        return enrollmentFlags;
+    }
+
+    /**
+     * @return a bitmask of the LockServices whose enrollment has been resolved
+     */
+    public int getKnownEnrollmentFlags() {
+        return knownEnrollmentFlags;
+    }
+
+    /**
+     * @return true if the user is known to be enrolled in at least one LockService
+     */
+    public boolean isEnrolled() {
+        return enrollmentFlags != 0;
+    }
+
+    public boolean isEnrolled(int enrollmentFlag) {
+        return (enrollmentFlags & enrollmentFlag) != 0;
+    }
+
+    public boolean isEnrollmentKnown(int enrollmentFlag) {
+        return (knownEnrollmentFlags & enrollmentFlag) == enrollmentFlag;
+    }
+
+    public boolean isKeyInvalidated(int enrollmentFlag) {
+        return (keyInvalidatedFlags & enrollmentFlag) != 0;
+    }
+
+    public long getUnlockSuccessTime() {
+        return unlockSuccessTime;
+    }
+
+    LockState withEnrollment(int enrollmentFlag, boolean enrolled) {
+        int flags = enrolled
+                ? enrollmentFlags | enrollmentFlag
+                : enrollmentFlags & ~enrollmentFlag;
+
+        return new LockState(flags, knownEnrollmentFlags | enrollmentFlag, keyInvalidatedFlags, unlockSuccessTime);
+    }
+
+    LockState withKeyInvalidated(int enrollmentFlag, boolean invalidated) {
+        int flags = invalidated
+                ? keyInvalidatedFlags | enrollmentFlag
+                : keyInvalidatedFlags & ~enrollmentFlag;
+
+        return new LockState(enrollmentFlags, knownEnrollmentFlags, flags, unlockSuccessTime);
+    }
+
+    LockState withUnlockSuccessTime(long unlockSuccessTime) {
+        return new LockState(enrollmentFlags, knownEnrollmentFlags, keyInvalidatedFlags, unlockSuccessTime);
+    }
+}
@@ -0,0 +1,509 @@
+package com.bitcoin.applock;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.AtomicFile;
+
+import androidx.annotation.RequiresApi;
+
+import com.bitcoin.applock.utils.AppLockExecutors;
+import com.bitcoin.applock.utils.CipherGenerator;
+import com.bitcoin.applock.utils.KeyHealthChecker;
+import com.bitcoin.applock.utils.KeyLostException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Secrets encrypted with an AES-GCM keystore key and stored together in a single file. They're
+ * decrypted once the user unlocks and kept in a bounded cache until the app locks again, when
+ * every decrypted copy is wiped, so reads in between are memory lookups.
+ *
+ * The keystore key doesn't require device authentication; the vault only ever decrypts while
+ * AppLock is unlocked. Each blob is bound to its name, so blobs can't be swapped between entries.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class SecretVault {
+
+    public static final String KEY_ALIAS = "applock__vault_key";
+
+    private static final String FILE_NAME = "applock__vault";
+    private static final String CORRUPT_FILE_NAME = "applock__vault.corrupt";
+    private static final int FILE_VERSION = 1;
+    // The version byte and the entry count
+    private static final int HEADER_LENGTH = 5;
+
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    protected final AtomicFile file;
+    protected final File corruptFile;
+    protected final LinkedHashMap<String, byte[]> cache;
+
+    // Loaded from the file on first use, and only ever replaced as a whole after that
+    protected HashMap<String, byte[]> encryptedEntries;
+    protected boolean unlocked;
+    protected boolean writeScheduled = false;
+    private volatile SecretKey key;
+
+    public SecretVault(Context context, final int maxCachedEntries, boolean unlocked) {
+        this.file = new AtomicFile(new File(context.getNoBackupFilesDir(), FILE_NAME));
+        this.corruptFile = new File(context.getNoBackupFilesDir(), CORRUPT_FILE_NAME);
+        this.unlocked = unlocked;
+
+        this.cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (size() <= maxCachedEntries)
+                    return false;
+
+                Arrays.fill(eldest.getValue(), (byte) 0);
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return true if the vault's file holds at least one secret, or was moved aside as corrupt
+     */
+    public static boolean hasStoredSecrets(Context context) {
+        File directory = context.getNoBackupFilesDir();
+
+        return HEADER_LENGTH < new File(directory, FILE_NAME).length()
+                || new File(directory, CORRUPT_FILE_NAME).exists();
+    }
+
+    /**
+     * Check that the vault's keystore key still exists. It's never recreated here: while secrets
+     * are stored, a new key would only make them fail to decrypt. Meant for a background thread.
+     */
+    public static KeyHealthChecker.Status checkKey() {
+        try {
+            return CipherGenerator.getKeyStore().containsAlias(KEY_ALIAS)
+                    ? KeyHealthChecker.Status.HEALTHY
+                    : KeyHealthChecker.Status.LOST;
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return KeyHealthChecker.Status.HEALTHY;
+        }
+    }
+
+    public synchronized boolean isUnlocked() {
+        return unlocked;
+    }
+
+    /**
+     * @return a copy of the secret stored under name, or null if there's none. Wipe it once done.
+     * @throws RuntimeException if the app is locked
+     */
+    public byte[] get(String name) throws Exception {
+        synchronized (this) {
+            ensureUnlocked();
+
+            byte[] cached = cache.get(name);
+
+            if (cached != null)
+                return cached.clone();
+        }
+
+        byte[] encrypted;
+
+        synchronized (this) {
+            encrypted = getEncryptedEntries().get(name);
+        }
+
+        if (encrypted == null)
+            return null;
+
+        byte[] secret = decrypt(name, encrypted);
+
+        synchronized (this) {
+            // Locked while decrypting, so don't keep it
+            if (!unlocked) {
+                Arrays.fill(secret, (byte) 0);
+
+                throw new RuntimeException("SecretVault is locked");
+            }
+
+            cacheSecret(name, secret);
+
+            return secret.clone();
+        }
+    }
+
+    public synchronized boolean contains(String name) throws Exception {
+        ensureUnlocked();
+
+        return getEncryptedEntries().containsKey(name);
+    }
+
+    /**
+     * Encrypt and store secret under name, replacing any existing one. The file is written in the
+     * background; secret itself isn't retained, so the caller can wipe it right away.
+     *
+     * @throws RuntimeException if the app is locked
+     */
+    public void put(String name, byte[] secret) throws Exception {
+        synchronized (this) {
+            ensureUnlocked();
+        }
+
+        byte[] encrypted = encrypt(name, secret);
+
+        synchronized (this) {
+            ensureUnlocked();
+
+            HashMap<String, byte[]> entries = new HashMap<String, byte[]>(getEncryptedEntries());
+            entries.put(name, encrypted);
+
+            this.encryptedEntries = entries;
+
+            cacheSecret(name, secret.clone());
+            scheduleWrite();
+        }
+    }
+
+    public synchronized void remove(String name) throws Exception {
+        ensureUnlocked();
+
+        HashMap<String, byte[]> entries = new HashMap<String, byte[]>(getEncryptedEntries());
+
+        if (entries.remove(name) == null)
+            return;
+
+        this.encryptedEntries = entries;
+
+        byte[] cached = cache.remove(name);
+
+        if (cached != null)
+            Arrays.fill(cached, (byte) 0);
+
+        scheduleWrite();
+    }
+
+    /**
+     * Delete every stored secret, including an unreadable file that was moved aside, so the
+     * vault can be used again after it reported a CorruptFileException or KeyLostException.
+     *
+     * @throws RuntimeException if the app is locked
+     */
+    public synchronized void reset() {
+        ensureUnlocked();
+
+        for (byte[] secret : cache.values())
+            Arrays.fill(secret, (byte) 0);
+
+        cache.clear();
+
+        this.encryptedEntries = new HashMap<String, byte[]>();
+        this.key = null;
+
+        if (corruptFile.exists() && !corruptFile.delete())
+            throw new RuntimeException("Couldn't delete " + corruptFile);
+
+        scheduleWrite();
+    }
+
+    /**
+     * Called when the user unlocks, to decrypt the stored secrets into the cache in the background.
+     */
+    public void onUnlocked() {
+        synchronized (this) {
+            this.unlocked = true;
+        }
+
+        // Not on the crypto executor, where it would queue ahead of PIN verifications
+        AppLockExecutors.getProbeExecutor()
+                .execute(new Runnable() {
+                    public void run() {
+                        preload();
+                    }
+                });
+    }
+
+    /**
+     * Called when the app locks, to wipe every decrypted secret.
+     */
+    public synchronized void onLocked() {
+        this.unlocked = false;
+
+        for (byte[] secret : cache.values())
+            Arrays.fill(secret, (byte) 0);
+
+        cache.clear();
+    }
+
+    protected void preload() {
+        ArrayList<Map.Entry<String, byte[]>> entries;
+
+        synchronized (this) {
+            try {
+                entries = new ArrayList<Map.Entry<String, byte[]>>(getEncryptedEntries().entrySet());
+            } catch (Exception e) {
+                e.printStackTrace();
+
+                return;
+            }
+        }
+
+        for (Map.Entry<String, byte[]> entry : entries) {
+            synchronized (this) {
+                if (!unlocked)
+                    return;
+
+                if (cache.containsKey(entry.getKey()))
+                    continue;
+            }
+
+            try {
+                byte[] secret = decrypt(entry.getKey(), entry.getValue());
+
+                synchronized (this) {
+                    if (!unlocked) {
+                        Arrays.fill(secret, (byte) 0);
+
+                        return;
+                    }
+
+                    cacheSecret(entry.getKey(), secret);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Called when the key was found to be gone, so the next access reports it with a
+     * KeyLostException instead of failing on the stale key it loaded before.
+     */
+    protected void onKeyLost() {
+        this.key = null;
+    }
+
+    protected void ensureUnlocked() {
+        if (!unlocked)
+            throw new RuntimeException("SecretVault is locked");
+    }
+
+    protected void cacheSecret(String name, byte[] secret) {
+        byte[] replaced = cache.put(name, secret);
+
+        if (replaced != null && replaced != secret)
+            Arrays.fill(replaced, (byte) 0);
+    }
+
+    protected HashMap<String, byte[]> getEncryptedEntries() throws Exception {
+        if (encryptedEntries == null)
+            this.encryptedEntries = readEntries();
+
+        return encryptedEntries;
+    }
+
+    /**
+     * A file that can't be parsed, e.g. one truncated by a crash mid-write, is moved aside
+     * untouched and reported with a CorruptFileException until reset() is called. Any other
+     * failure, including a file written by a newer version, is thrown as is without touching
+     * the file, and the read is retried on the next access.
+     */
+    protected HashMap<String, byte[]> readEntries() throws Exception {
+        if (corruptFile.exists())
+            throw new CorruptFileException(corruptFile, null);
+
+        HashMap<String, byte[]> entries = new HashMap<String, byte[]>();
+        long fileLength = file.getBaseFile().length();
+        DataInputStream input;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(file.openRead()));
+        } catch (FileNotFoundException e) {
+            return entries;
+        }
+
+        try {
+            int version = input.readUnsignedByte();
+
+            if (FILE_VERSION < version)
+                throw new IOException("SecretVault file was written by a newer version: " + version);
+
+            if (version != FILE_VERSION)
+                throw new StreamCorruptedException("Unknown SecretVault version: " + version);
+
+            int count = input.readInt();
+
+            if (count < 0)
+                throw new StreamCorruptedException("SecretVault entry count is negative: " + count);
+
+            for (int i = 0; i < count; i++) {
+                String name = input.readUTF();
+                int length = input.readInt();
+
+                // Don't trust a corrupt length with an allocation
+                if (length < 0 || fileLength < length)
+                    throw new EOFException("SecretVault entry is truncated: " + name);
+
+                byte[] blob = new byte[length];
+
+                input.readFully(blob);
+                entries.put(name, blob);
+            }
+        } catch (EOFException | UTFDataFormatException | StreamCorruptedException e) {
+            throw moveAside(e);
+        } finally {
+            input.close();
+        }
+
+        return entries;
+    }
+
+    protected CorruptFileException moveAside(IOException cause) throws IOException {
+        if (!file.getBaseFile().renameTo(corruptFile))
+            throw new IOException("Couldn't move the unreadable SecretVault file aside", cause);
+
+        return new CorruptFileException(corruptFile, cause);
+    }
+
+    protected void scheduleWrite() {
+        if (writeScheduled)
+            return;
+
+        this.writeScheduled = true;
+
+        AppLockExecutors.getPersistenceExecutor()
+                .execute(new Runnable() {
+                    public void run() {
+                        HashMap<String, byte[]> entries;
+
+                        // Coalesces every change made before this runs into a single write
+                        synchronized (SecretVault.this) {
+                            writeScheduled = false;
+                            entries = encryptedEntries;
+                        }
+
+                        writeEntries(entries);
+                    }
+                });
+    }
+
+    protected void writeEntries(HashMap<String, byte[]> entries) {
+        FileOutputStream stream = null;
+
+        try {
+            stream = file.startWrite();
+
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeByte(FILE_VERSION);
+            output.writeInt(entries.size());
+
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeInt(entry.getValue().length);
+                output.write(entry.getValue());
+            }
+
+            output.flush();
+            file.finishWrite(stream);
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            if (stream != null)
+                file.failWrite(stream);
+        }
+    }
+
+    protected byte[] encrypt(String name, byte[] secret) throws Exception {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getKey());
+        cipher.updateAAD(name.getBytes(UTF_8));
+
+        byte[] iv = cipher.getIV();
+        byte[] ciphertext = cipher.doFinal(secret);
+
+        return ByteBuffer.allocate(iv.length + ciphertext.length)
+                .put(iv)
+                .put(ciphertext)
+                .array();
+    }
+
+    protected byte[] decrypt(String name, byte[] blob) throws Exception {
+        if (blob.length < GCM_IV_LENGTH)
+            throw new RuntimeException("SecretVault entry is too short: " + name);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(GCM_TAG_LENGTH_BITS, blob, 0, GCM_IV_LENGTH));
+        cipher.updateAAD(name.getBytes(UTF_8));
+
+        return cipher.doFinal(blob, GCM_IV_LENGTH, blob.length - GCM_IV_LENGTH);
+    }
+
+    /**
+     * The key is only ever created while the vault is empty. If it's gone while secrets are still
+     * stored, they can never be decrypted again, so that's reported with a KeyLostException rather
+     * than replacing the key and failing every blob's tag check; reset() drops them.
+     */
+    protected SecretKey getKey() throws Exception {
+        SecretKey key = this.key;
+
+        if (key != null)
+            return key;
+
+        key = CipherGenerator.getDataKey(KEY_ALIAS);
+
+        if (key == null) {
+            synchronized (this) {
+                // Entries are only ever added once a key exists, so an empty vault can't race this
+                if (!getEncryptedEntries().isEmpty())
+                    throw new KeyLostException("SecretVault key is gone, so its secrets can't be decrypted anymore");
+            }
+
+            key = CipherGenerator.getOrCreateDataKey(KEY_ALIAS);
+        }
+
+        this.key = key;
+
+        return key;
+    }
+
+    /**
+     * Thrown while the vault's file can't be parsed. The file has been moved to getFile() as it
+     * was, for whatever recovery is possible; call reset() to start over with an empty vault.
+     */
+    public static class CorruptFileException extends IOException {
+
+        private final File file;
+
+        public CorruptFileException(File file, Throwable cause) {
+            super("SecretVault file is unreadable and was moved to " + file, cause);
+
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.bitcoin.applock;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import com.bitcoin.applock.activities.UnlockActivity;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Makes sure only one UnlockActivity is ever shown at a time. The first request launches it,
+ * and any request made while it's pending is attached as a waiter instead, to be completed
+ * together once that single unlock succeeds or is canceled. Only used on the main thread.
+ */
+public class UnlockCoordinator {
+
+    // A launch that hasn't shown the UnlockActivity by then is assumed to have been lost
+    private static final long LAUNCH_TIMEOUT_MS = 5000;
+
+    protected boolean pending = false;
+    protected long launchedAtElapsedMs = 0;
+    protected WeakReference<Activity> launcher = new WeakReference<Activity>(null);
+    protected WeakReference<Activity> unlockActivity = new WeakReference<Activity>(null);
+    protected final ArrayList<WeakReference<Waiter>> waiters = new ArrayList<WeakReference<Waiter>>();
+
+    /**
+     * @return true if an unlock has been requested and hasn't completed yet
+     */
+    public boolean isPending() {
+        if (!pending)
+            return false;
+
+        // Shown and alive, or launched recently enough that it may still show
+        return unlockActivity.get() != null
+                || SystemClock.elapsedRealtime() - launchedAtElapsedMs < LAUNCH_TIMEOUT_MS;
+    }
+
+    /**
+     * Open the UnlockActivity from activity, unless one is already pending, in which case activity is
+     * only notified of its outcome through Waiter.onUnlockCompleted(boolean), if it implements it.
+     *
+     * @return true if the UnlockActivity was launched from activity, and its result will be
+     * delivered to activity's onActivityResult with REQUEST_CODE_UNLOCK
+     */
+    public boolean requestUnlock(Activity activity, boolean unlockedExitAllowed) {
+        if (isPending()) {
+            if (activity instanceof Waiter && activity != launcher.get())
+                attach((Waiter) activity);
+
+            return false;
+        }
+
+        this.pending = true;
+        this.launchedAtElapsedMs = SystemClock.elapsedRealtime();
+        this.launcher = new WeakReference<Activity>(activity);
+        this.unlockActivity = new WeakReference<Activity>(null);
+
+        Intent intent = new Intent(activity, UnlockActivity.class)
+                .putExtra(UnlockActivity.INTENT_ALLOW_UNLOCKED_EXIT, unlockedExitAllowed);
+
+        activity.startActivityForResult(intent, AppLock.REQUEST_CODE_UNLOCK);
+
+        return true;
+    }
+
+    public void attach(Waiter waiter) {
+        for (int i = waiters.size() - 1; 0 <= i; i--) {
+            Waiter existing = waiters.get(i).get();
+
+            if (existing == null)
+                waiters.remove(i);
+            else if (existing == waiter)
+                return;
+        }
+
+        waiters.add(new WeakReference<Waiter>(waiter));
+    }
+
+    /**
+     * Called by the UnlockActivity once it's created, so the pending request no longer times out.
+     */
+    public void onUnlockShown(Activity unlockActivity) {
+        this.pending = true;
+        this.unlockActivity = new WeakReference<Activity>(unlockActivity);
+    }
+
+    /**
+     * Called by the UnlockActivity once it finishes, to complete every waiter with the same outcome.
+     */
+    public void onUnlockCompleted(boolean unlocked) {
+        if (!pending)
+            return;
+
+        this.pending = false;
+        this.launcher = new WeakReference<Activity>(null);
+        this.unlockActivity = new WeakReference<Activity>(null);
+
+        // Copied, since a waiter may request another unlock as soon as it's completed
+        ArrayList<WeakReference<Waiter>> completed = new ArrayList<WeakReference<Waiter>>(waiters);
+        waiters.clear();
+
+        for (WeakReference<Waiter> reference : completed) {
+            Waiter waiter = reference.get();
+
+            if (waiter != null)
+                waiter.onUnlockCompleted(unlocked);
+        }
+    }
+
+    public interface Waiter {
+        /**
+         * @param unlocked true if the user unlocked, false if the unlock was canceled
+         */
+        void onUnlockCompleted(boolean unlocked);
+    }
+}
@@ -6,8 +6,9 @@ import android.content.Intent;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.bitcoin.applock.AppLock;
+import com.bitcoin.applock.UnlockCoordinator;
 
-public class LockableAppCompatActivity extends AppCompatActivity {
+public class LockableAppCompatActivity extends AppCompatActivity implements UnlockCoordinator.Waiter {
 
     @Override
     protected void onPostResume() {
@@ -24,6 +25,15 @@ public class LockableAppCompatActivity extends AppCompatActivity {
             handleUnlockActivityReturnFailure();
     }
 
+    /**
+     * Called instead of onActivityResult when the UnlockActivity was opened for another Activity.
+     */
+    @Override
+    public void onUnlockCompleted(boolean unlocked) {
+        if (!unlocked)
+            handleUnlockActivityReturnFailure();
+    }
+
     protected void handleUnlockActivityReturnFailure() {
         setResult(Activity.RESULT_CANCELED);
         finish();
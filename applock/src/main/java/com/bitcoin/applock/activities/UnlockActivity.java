@@ -7,6 +7,7 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.bitcoin.applock.AppLock;
 import com.bitcoin.applock.R;
 import com.bitcoin.applock.views.UnlockViewController;
 
@@ -27,6 +28,20 @@ public class UnlockActivity extends AppCompatActivity implements UnlockViewContr
         this.viewController.setupRootFlow();
         this.viewController.setAutoAuthorizationEnabled(true);
 
+        AppLock.getInstance(this)
+                .getUnlockCoordinator()
+                .onUnlockShown(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Finished without a result, e.g. by removing the task, counts as canceled
+        if (isFinishing())
+            AppLock.getInstance(this)
+                    .getUnlockCoordinator()
+                    .onUnlockCompleted(false);
     }
 
     @Override
@@ -37,6 +52,10 @@ public class UnlockActivity extends AppCompatActivity implements UnlockViewContr
 
     @Override
     public void onUnlockSuccessful() {
+        AppLock.getInstance(this)
+                .getUnlockCoordinator()
+                .onUnlockCompleted(true);
+
         setResult(Activity.RESULT_OK);
         finish();
     }
@@ -71,6 +90,10 @@ public class UnlockActivity extends AppCompatActivity implements UnlockViewContr
             return;
         }
 
+        AppLock.getInstance(this)
+                .getUnlockCoordinator()
+                .onUnlockCompleted(false);
+
         setResult(Activity.RESULT_CANCELED);
         finish();
     }
@@ -61,7 +61,7 @@ public abstract class AppLockDialogBuilder<ALVC extends AppLockViewController> {
         this.viewController.setupRootFlow();
 
         AppCompatDialog dialog = builder.show();
-        AppLock.getInstance(activity).activeDialog = dialog;
+        AppLock.getInstance(activity).setActiveDialog(dialog);
 
         this.dialog = new WeakReference<AppCompatDialog>(dialog);
 
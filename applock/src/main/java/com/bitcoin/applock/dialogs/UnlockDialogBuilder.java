@@ -12,6 +12,9 @@ public class UnlockDialogBuilder extends AppLockDialogBuilder<UnlockViewControll
 
     protected Runnable unlockCallback;
     protected Runnable canceledCallback;
+    protected String grantScope;
+    protected long grantTtlMs;
+    protected int grantMaxUses;
 
     public UnlockDialogBuilder(Activity activity) {
         super(activity, R.layout.applock__unlock);
@@ -35,6 +38,22 @@ public class UnlockDialogBuilder extends AppLockDialogBuilder<UnlockViewControll
         return this;
     }
 
+    /**
+     * Issue an authorization grant for scope once the user has unlocked, so the next operations in
+     * that scope can skip the prompt through showIfUnauthorizedOrSuccess(). The operation that
+     * triggered the unlock counts as the grant's first use.
+     *
+     * @param ttlMs   the milliseconds the grant is valid for
+     * @param maxUses the number of operations it authorizes, or AuthorizationGrants.UNLIMITED_USES
+     */
+    public UnlockDialogBuilder grantOnUnlock(String scope, long ttlMs, int maxUses) {
+        this.grantScope = scope;
+        this.grantTtlMs = ttlMs;
+        this.grantMaxUses = maxUses;
+
+        return this;
+    }
+
     @Override
     protected UnlockViewController buildViewControllerInstance(View parent) {
         UnlockViewController controller = new UnlockViewController(activity.get(), parent);
@@ -46,9 +65,21 @@ public class UnlockDialogBuilder extends AppLockDialogBuilder<UnlockViewControll
     @Override
     public void onUnlockSuccessful() {
         dismissDialog();
+        issueGrant();
         triggerUnlockCallback();
     }
 
+    protected void issueGrant() {
+        Activity activity = this.activity.get();
+
+        if (activity == null || grantScope == null)
+            return;
+
+        AppLock appLock = AppLock.getInstance(activity);
+        appLock.grantAuthorization(grantScope, grantTtlMs, grantMaxUses);
+        appLock.consumeAuthorization(grantScope);
+    }
+
     @Override
     public void onCancel() {
 
@@ -112,4 +143,29 @@ public class UnlockDialogBuilder extends AppLockDialogBuilder<UnlockViewControll
 
         return show();
     }
+
+    /**
+     * Consume the authorization grant set with grantOnUnlock() if there's a valid one, triggering
+     * this instance's UnlockDialogBuilder.unlockCallback immediately. Otherwise, this behaves
+     * like showIfEnrolledOrSuccess(), and a new grant is issued once the user unlocks.
+     *
+     * @return Dialog if show() is called
+     */
+    public Dialog showIfUnauthorizedOrSuccess() {
+        Activity activity = this.activity.get();
+
+        if (activity == null)
+            return null;
+
+        if (grantScope == null)
+            throw new RuntimeException("grantOnUnlock() must be called before showIfUnauthorizedOrSuccess()");
+
+        if (AppLock.getInstance(activity).consumeAuthorization(grantScope)) {
+            triggerUnlockCallback();
+
+            return null;
+        }
+
+        return showIfEnrolledOrSuccess();
+    }
 }
@@ -5,11 +5,13 @@ import android.view.inputmethod.EditorInfo;
 import android.widget.TextView;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 public class PINInputController implements TextView.OnEditorActionListener {
 
     private WeakReference<PINInputView> inputView;
     private WeakReference<InputEventListener> eventListener = new WeakReference<InputEventListener>(null);
+    private char[] inputBuffer = new char[0];
 
     /**
      * If you want to actually receive events after this, make sure you call setInputEventListener
@@ -61,7 +63,7 @@ public class PINInputController implements TextView.OnEditorActionListener {
             InputEventListener eventListener = this.eventListener.get();
 
             if (eventListener != null)
-                eventListener.onInputEntered(inputView.getText());
+                dispatchInputEntered(inputView, eventListener);
 
             inputView.reset();
 
@@ -71,6 +73,28 @@ public class PINInputController implements TextView.OnEditorActionListener {
         return false;
     }
 
+    private void dispatchInputEntered(PINInputView inputView, InputEventListener eventListener) {
+        if (!(eventListener instanceof SecureInputEventListener)) {
+            eventListener.onInputEntered(inputView.getText());
+            return;
+        }
+
+        int capacity = inputView.getTextLength();
+
+        if (inputBuffer.length < capacity) {
+            Arrays.fill(inputBuffer, '\0');
+            this.inputBuffer = new char[capacity];
+        }
+
+        int length = inputView.getText(inputBuffer);
+
+        try {
+            ((SecureInputEventListener) eventListener).onInputEntered(inputBuffer, length);
+        } finally {
+            Arrays.fill(inputBuffer, '\0');
+        }
+    }
+
     private boolean isSoftKeyboardFinishedAction(TextView view, int action, KeyEvent event) {
         // Some devices return null event on editor actions for Enter Button (thanks, Samsung)
         if (!(event == null || event.getAction() == KeyEvent.ACTION_DOWN))
@@ -94,7 +118,24 @@ public class PINInputController implements TextView.OnEditorActionListener {
         return inputView.matchesRequiredPINLength(input);
     }
 
+    public boolean matchesRequiredPINLength(int length) {
+        final PINInputView inputView = this.inputView.get();
+
+        if (inputView == null)
+            return false;
+
+        return inputView.matchesRequiredPINLength(length);
+    }
+
     public interface InputEventListener {
         void onInputEntered(String input);
     }
+
+    /**
+     * An InputEventListener that receives the entered PIN without it ever becoming a String.
+     * The buffer is reused and wiped as soon as onInputEntered returns, so copy anything you need to keep.
+     */
+    public interface SecureInputEventListener extends InputEventListener {
+        void onInputEntered(char[] input, int length);
+    }
 }
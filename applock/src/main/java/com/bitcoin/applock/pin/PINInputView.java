@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
@@ -17,7 +18,7 @@ import android.widget.TextView;
 
 import com.bitcoin.applock.R;
 
-import java.util.WeakHashMap;
+import java.util.Arrays;
 
 public class PINInputView extends LinearLayout implements TextWatcher {
 
@@ -28,12 +29,17 @@ public class PINInputView extends LinearLayout implements TextWatcher {
     private PINItemView[] pinItemViews;
 
     private EditText editText;
-    private String lastText = "";
+    private int lastLength = 0;
 
     private boolean passwordCharactersEnabled = true;
-    private String passwordCharacter;
+    private char[] passwordCharacter;
+    private char[] drawnText = new char[0];
+    private float emptyItemMinSizePercent;
 
-    private WeakHashMap<PINItemView, PINItemAnimator> animators = new WeakHashMap<PINItemView, PINItemAnimator>();
+    private final Rect dirtyBounds = new Rect();
+    private final Rect clipBounds = new Rect();
+
+    private PINItemAnimator itemAnimator = new PINItemAnimator(this);
 
     public PINInputView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -57,7 +63,8 @@ public class PINInputView extends LinearLayout implements TextWatcher {
 
         inputViewsCount = getResources().getInteger(R.integer.applock__input_pin_item_count);
 
-        passwordCharacter = getResources().getString(R.string.applock__password_char);
+        passwordCharacter = getResources().getString(R.string.applock__password_char).toCharArray();
+        emptyItemMinSizePercent = Float.parseFloat(getResources().getString(R.string.applock__empty_item_min_size_percent));
 
         a.recycle();
     }
@@ -79,12 +86,17 @@ public class PINInputView extends LinearLayout implements TextWatcher {
     public PINInputView setInputViewsCount(int inputViewsCount) {
         this.inputViewsCount = inputViewsCount;
 
+        if (0 < getWidth() && 0 < getHeight())
+            setupItemViews(getWidth(), getHeight());
+
         return reset();
     }
 
     public PINInputView reset() {
-        this.lastText = "";
-        this.editText.setText("");
+        this.lastLength = 0;
+        this.editText.getText().clear();
+
+        Arrays.fill(drawnText, '\0');
 
         if (pinItemViews != null)
             animateLastOut();
@@ -109,46 +121,94 @@ public class PINInputView extends LinearLayout implements TextWatcher {
                 .showSoftInput(editText, 0);
     }
 
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+
+        setupItemViews(width, height);
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
-        if (pinItemViews == null || pinItemViews.length != inputViewsCount)
-            setupItemViews(canvas);
+        // The cells are only built by a size change or setInputViewsCount, never while drawing
+        if (pinItemViews == null)
+            return;
+
+        int length = Math.min(editText.length(), pinItemViews.length);
 
-        String text = editText.getText().toString();
+        if (!passwordCharactersEnabled)
+            editText.getText().getChars(0, length, drawnText, 0);
+
+        // Without a clip every cell is drawn, e.g. when the whole view was invalidated
+        boolean clipped = canvas.getClipBounds(clipBounds);
 
         for (int i = 0; i < pinItemViews.length; i++) {
-            String textItem = i < text.length()
-                    ? (passwordCharactersEnabled ? passwordCharacter : text.substring(i, i + 1))
-                    : "";
+            PINItemView item = pinItemViews[i];
+
+            if (clipped && !Rect.intersects(clipBounds, item.getBounds()))
+                continue;
+
+            if (length <= i)
+                item.draw(canvas, drawnText, 0, 0);
+            else if (passwordCharactersEnabled)
+                item.draw(canvas, passwordCharacter, 0, passwordCharacter.length);
+            else
+                item.draw(canvas, drawnText, i, 1);
 
-            pinItemViews[i].draw(canvas, textItem);
+            item.clearDirty();
         }
     }
 
-    private void setupItemViews(Canvas canvas) {
+    /**
+     * Lay out the cells once for the given size or count, instead of on every draw.
+     */
+    private void setupItemViews(int width, int height) {
+        itemAnimator.cancel();
+
         pinItemViews = new PINItemView[inputViewsCount];
+        drawnText = new char[inputViewsCount];
 
-        int cellWidth = canvas.getWidth() / inputViewsCount;
-        int largestRadius = Math.min(cellWidth / 2, canvas.getHeight() / 2);
-        int smallestRadius = (int) (largestRadius * Float.parseFloat(getResources().getString(R.string.applock__empty_item_min_size_percent)));
+        int cellWidth = width / inputViewsCount;
+        int largestRadius = Math.min(cellWidth / 2, height / 2);
+        int smallestRadius = (int) (largestRadius * emptyItemMinSizePercent);
         int[] minMaxRadius = new int[]{smallestRadius, largestRadius};
 
         itemTextPaint.setTextSize((int) (largestRadius * .85));
 
         for (int i = 0; i < pinItemViews.length; i++) {
-            float[] positionInCanvas = getPositionInCanvas(canvas, i, cellWidth);
+            float[] position = getItemPosition(i, cellWidth, height);
 
-            pinItemViews[i] = new PINItemView(positionInCanvas, minMaxRadius, itemTextPaint, itemBackgroundPaint, getResources());
+            pinItemViews[i] = new PINItemView(position, minMaxRadius, itemTextPaint, itemBackgroundPaint, getResources());
         }
+
+        invalidate();
     }
 
-    private float[] getPositionInCanvas(Canvas canvas, int position, int cellWidth) {
+    private float[] getItemPosition(int position, int cellWidth, int height) {
         return new float[]{
                 (cellWidth * position) + (cellWidth / 2),
-                canvas.getHeight() / 2
+                height / 2
         };
     }
 
+    /**
+     * Invalidate only the union of the cells whose appearance changed since they were last drawn.
+     */
+    void invalidateDirtyItems() {
+        if (pinItemViews == null)
+            return;
+
+        dirtyBounds.setEmpty();
+
+        for (PINItemView item : pinItemViews) {
+            if (item.isDirty())
+                dirtyBounds.union(item.getBounds());
+        }
+
+        if (!dirtyBounds.isEmpty())
+            invalidate(dirtyBounds.left, dirtyBounds.top, dirtyBounds.right, dirtyBounds.bottom);
+    }
+
     @Override
     public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
     }
@@ -159,22 +219,27 @@ public class PINInputView extends LinearLayout implements TextWatcher {
 
     @Override
     public void afterTextChanged(final Editable editable) {
-        if (editable == null || lastText == null)
+        if (editable == null)
+            return;
+
+        int length = editable.length();
+
+        // Trimming re-enters this method with the allowed length
+        if (inputViewsCount < length) {
+            editable.delete(inputViewsCount, length);
             return;
+        }
+
+        int previousLength = lastLength;
 
-        String text = editable.toString();
-        if (inputViewsCount < text.length()) {
-            editText.setText(lastText);
-            editText.setSelection(editText.getText().length());
-        } else if (text.length() < lastText.length()) {
+        if (length < previousLength)
             animateLastOut();
-            this.lastText = text;
-        } else if (lastText.length() < text.length()) {
+        else if (previousLength < length)
             animateLastIn();
-            this.lastText = text;
-        }
 
-        if (inputViewsCount == text.length()) {
+        this.lastLength = length;
+
+        if (inputViewsCount == length && previousLength != length) {
             postDelayed(new Runnable() {
                 public void run() {
                     editText.dispatchKeyEvent(new KeyEvent(0, 0,
@@ -188,7 +253,10 @@ public class PINInputView extends LinearLayout implements TextWatcher {
     }
 
     private void animateLastOut() {
-        int startingIndex = editText.getText().toString().length(); // One after current length, only happens on backspace
+        if (pinItemViews == null)
+            return;
+
+        int startingIndex = editText.length(); // One after current length, only happens on backspace
 
         for (int i = pinItemViews.length - 1; startingIndex <= i; i--)
             if (!pinItemViews[i].isAnimatedOut())
@@ -196,47 +264,69 @@ public class PINInputView extends LinearLayout implements TextWatcher {
     }
 
     private void animateLastIn() {
-        PINItemView item = pinItemViews[editText.getText().toString().length() - 1];
+        if (pinItemViews == null || pinItemViews.length < editText.length())
+            return;
+
+        PINItemView item = pinItemViews[editText.length() - 1];
         animate(item, PINItemAnimator.ItemAnimationDirection.IN);
     }
 
     private void animate(PINItemView view, PINItemAnimator.ItemAnimationDirection direction) {
-        cancelPreviousAnimation(view);
-        view.setAnimationDirection(direction);
-
-        PINItemAnimator animator = new PINItemAnimator(this, view, direction);
-        animators.put(view, animator);
-        animator.start();
+        itemAnimator.animate(view, direction);
     }
 
-    private void cancelPreviousAnimation(PINItemView view) {
-        PINItemAnimator animator = animators.get(view);
+    @Override
+    protected void onDetachedFromWindow() {
+        itemAnimator.cancel();
 
-        try {
-            animator.cancel();
-            animators.put(view, null);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        Arrays.fill(drawnText, '\0');
+
+        super.onDetachedFromWindow();
     }
 
     public String getText() {
         return editText.getText().toString();
     }
 
+    /**
+     * Copy the entered characters into destination without creating a String.
+     *
+     * @return the number of characters copied
+     */
+    public int getText(char[] destination) {
+        Editable text = editText.getText();
+        int length = Math.min(text.length(), destination.length);
+
+        text.getChars(0, length, destination, 0);
+
+        return length;
+    }
+
+    public int getTextLength() {
+        return editText.length();
+    }
+
     public void setOnEditorActionListener(TextView.OnEditorActionListener actionListener) {
         editText.setOnEditorActionListener(actionListener);
     }
 
     public void setPasswordCharactersEnabled(boolean passwordCharactersEnabled) {
         this.passwordCharactersEnabled = passwordCharactersEnabled;
+
+        invalidate();
     }
 
     public void setPasswordCharacter(String passwordCharacter) {
-        this.passwordCharacter = passwordCharacter;
+        this.passwordCharacter = passwordCharacter.toCharArray();
+
+        invalidate();
     }
 
     public boolean matchesRequiredPINLength(String input) {
-        return input.length() == inputViewsCount;
+        return matchesRequiredPINLength(input.length());
+    }
+
+    public boolean matchesRequiredPINLength(int length) {
+        return length == inputViewsCount;
     }
 }
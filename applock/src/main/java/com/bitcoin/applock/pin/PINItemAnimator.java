@@ -1,89 +1,99 @@
 package com.bitcoin.applock.pin;
 
+import android.view.Choreographer;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.Interpolator;
 
-import com.bitcoin.applock.R;
-
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives every animating PINItemView of a PINInputView from the display frame clock.
+ * All active items are advanced in a single pass per frame, and no frames are requested
+ * once nothing is animating. Must only be used from the main thread.
+ */
+public class PINItemAnimator implements Choreographer.FrameCallback {
 
-public class PINItemAnimator extends Thread {
+    private static final long ANIMATION_DURATION_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
 
-    private static final int ANIMATION_DURATION = 250;
-    private static final int UPDATE_RATE = 25;
     private WeakReference<PINInputView> inputView;
-    private PINItemView itemView;
-    private ItemAnimationDirection animationDirection;
     private Interpolator itemInterpolator = new AccelerateDecelerateInterpolator();
-    private float minSizePercent;
-    private long startTime;
-    private boolean canceled = false;
+    private ArrayList<PINItemView> activeItems = new ArrayList<PINItemView>();
+    private boolean frameScheduled = false;
 
-    public PINItemAnimator(PINInputView inputView, PINItemView itemView, ItemAnimationDirection animationDirection) {
+    public PINItemAnimator(PINInputView inputView) {
         this.inputView = new WeakReference<PINInputView>(inputView);
-        this.itemView = itemView;
-        this.animationDirection = animationDirection;
-        this.minSizePercent = Float.parseFloat(inputView.getResources().getString(R.string.applock__empty_item_min_size_percent));
     }
 
-    @Override
-    public void run() {
-        this.startTime = System.currentTimeMillis();
-
-        try {
-            if (animationDirection == ItemAnimationDirection.IN)
-                animateIn();
-            else
-                animateOut();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
+    /**
+     * Start animating itemView towards direction, continuing from wherever it currently is.
+     */
+    public void animate(PINItemView itemView, ItemAnimationDirection direction) {
+        itemView.startAnimation(direction, System.nanoTime());
 
-    private void animateIn() throws Exception {
-        float percent = minSizePercent;
+        if (!activeItems.contains(itemView))
+            activeItems.add(itemView);
 
-        while (percent < 1 && !canceled) {
-            int colorResource = R.color.applock__pin_selected;
-            updateView(colorResource);
-            Thread.sleep(UPDATE_RATE);
-        }
+        scheduleFrame();
     }
 
-    private void animateOut() throws Exception {
-        float percent = 1 - calculatePercentComplete();
+    public void cancel() {
+        activeItems.clear();
 
-        while (minSizePercent < percent && !canceled) {
-            int colorResource = R.color.applock__pin_default;
-            updateView(colorResource);
+        if (frameScheduled) {
+            Choreographer.getInstance()
+                    .removeFrameCallback(this);
 
-            Thread.sleep(UPDATE_RATE);
+            this.frameScheduled = false;
         }
     }
 
-    protected float calculatePercentComplete() {
-        float completed = ((float) (System.currentTimeMillis() - startTime)) / ANIMATION_DURATION;
+    public boolean isAnimating() {
+        return !activeItems.isEmpty();
+    }
+
+    private void scheduleFrame() {
+        if (frameScheduled)
+            return;
+
+        this.frameScheduled = true;
 
-        return itemInterpolator.getInterpolation(completed);
+        Choreographer.getInstance()
+                .postFrameCallback(this);
     }
 
-    private void updateView(final int colorResource) {
-        final PINInputView inputView = this.inputView.get();
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        this.frameScheduled = false;
+
+        PINInputView inputView = this.inputView.get();
 
-        if (inputView == null)
+        if (inputView == null) {
+            activeItems.clear();
             return;
+        }
+
+        for (int i = activeItems.size() - 1; 0 <= i; i--) {
+            PINItemView item = activeItems.get(i);
+            float completed = calculatePercentComplete(item, frameTimeNanos);
 
-        inputView.post(new Runnable() {
-            public void run() {
-                itemView.onAnimationUpdate(colorResource);
+            item.onAnimationUpdate(itemInterpolator.getInterpolation(completed));
 
-                inputView.invalidate();
-            }
-        });
+            if (1 <= completed)
+                activeItems.remove(i);
+        }
+
+        inputView.invalidateDirtyItems();
+
+        if (!activeItems.isEmpty())
+            scheduleFrame();
     }
 
-    public void cancel() {
-        this.canceled = true;
+    protected float calculatePercentComplete(PINItemView item, long frameTimeNanos) {
+        float completed = ((float) (frameTimeNanos - item.getAnimationStartNanos())) / ANIMATION_DURATION_NANOS;
+
+        return Math.max(0, Math.min(1, completed));
     }
 
     public enum ItemAnimationDirection {
@@ -2,28 +2,53 @@ package com.bitcoin.applock.pin;
 
 import android.content.res.Resources;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 
 import com.bitcoin.applock.R;
 
 public class PINItemView {
 
     private float[] position;
+    private int minimumRadius;
     private int intendedRadius;
-    private int currentRadius;
+    private float currentRadius;
     private Paint backgroundPaint;
 
     private float[] textPosition;
     private Paint textPaint;
     private Resources resources;
 
+    private int defaultColor;
+    private int selectedColor;
+    private int currentColor;
+    private boolean radiusAnimationEnabled;
+
     private PINItemAnimator.ItemAnimationDirection animationDirection = PINItemAnimator.ItemAnimationDirection.OUT;
+    private long animationStartNanos;
+    private float animationStartPercent;
+    private float percent = 0;
+
+    private Rect bounds = new Rect();
+    private boolean dirty = true;
 
     public PINItemView(float[] position, int[] minMaxRadius, Paint baseTextPaint, Paint baseBackgroundPaint, Resources context) {
         this.position = position;
+        this.minimumRadius = minMaxRadius[0];
         this.intendedRadius = minMaxRadius[1];
         this.currentRadius = minMaxRadius[0];
         this.resources = context;
+        this.defaultColor = resources.getColor(R.color.applock__pin_default);
+        this.selectedColor = resources.getColor(R.color.applock__pin_selected);
+        this.radiusAnimationEnabled = resources.getBoolean(R.bool.applock__item_radius_animation_enabled);
+
+        // Large enough for the filled size and the text, so partial invalidation never clips either
+        this.bounds.set(
+                (int) Math.floor(position[0] - intendedRadius),
+                (int) Math.floor(position[1] - intendedRadius),
+                (int) Math.ceil(position[0] + intendedRadius),
+                (int) Math.ceil(position[1] + intendedRadius));
 
         setupPaints(baseTextPaint, baseBackgroundPaint);
     }
@@ -32,7 +57,7 @@ public class PINItemView {
         this.textPaint = new Paint();
         this.textPaint.setTextAlign(Paint.Align.CENTER);
         this.textPaint.setAntiAlias(true);
-        this.textPaint.setColor(resources.getColor(R.color.applock__pin_default));
+        this.textPaint.setColor(defaultColor);
         this.textPaint.setTextSize(baseTextPaint.getTextSize());
 
         this.textPosition = new float[]{
@@ -44,24 +69,94 @@ public class PINItemView {
         this.backgroundPaint.setTextAlign(Paint.Align.CENTER);
         this.backgroundPaint.setAntiAlias(true);
         this.backgroundPaint.setColor(baseBackgroundPaint.getColor());
+
+        this.currentColor = baseBackgroundPaint.getColor();
     }
 
     public void draw(Canvas canvas, String textValue) {
-        canvas.drawCircle(position[0], position[1], currentRadius, backgroundPaint);
-        canvas.drawText(textValue, textPosition[0], textPosition[1], textPaint);
+        draw(canvas, textValue.toCharArray(), 0, textValue.length());
+    }
+
+    /**
+     * Draw this item with count chars of text starting at index. Allocates nothing, so it's safe to call on every frame.
+     */
+    public void draw(Canvas canvas, char[] text, int index, int count) {
+        float radius = radiusAnimationEnabled ? currentRadius : minimumRadius;
+
+        canvas.drawCircle(position[0], position[1], radius, backgroundPaint);
+
+        if (0 < count)
+            canvas.drawText(text, index, count, textPosition[0], textPosition[1], textPaint);
     }
 
     public void setAnimationDirection(PINItemAnimator.ItemAnimationDirection animationDirection) {
         this.animationDirection = animationDirection;
     }
 
-    public void onAnimationUpdate(int colorResource) {
-        //this.currentRadius = (int) (intendedRadius * percentCompleted);
-        //this.textPaint.setAlpha((int) (255 * percentCompleted));
-        this.backgroundPaint.setColor(resources.getColor(colorResource));
+    void startAnimation(PINItemAnimator.ItemAnimationDirection animationDirection, long startNanos) {
+        this.animationDirection = animationDirection;
+        this.animationStartNanos = startNanos;
+        this.animationStartPercent = percent;
+    }
+
+    long getAnimationStartNanos() {
+        return animationStartNanos;
+    }
+
+    /**
+     * @param interpolated the interpolated progress of the current animation, from 0 to 1
+     */
+    public void onAnimationUpdate(float interpolated) {
+        float target = animationDirection == PINItemAnimator.ItemAnimationDirection.IN ? 1 : 0;
+
+        this.percent = animationStartPercent + (target - animationStartPercent) * interpolated;
+        this.currentRadius = minimumRadius + (intendedRadius - minimumRadius) * percent;
+        this.currentColor = blendColors(defaultColor, selectedColor, percent);
+
+        this.backgroundPaint.setColor(currentColor);
+        this.dirty = true;
+    }
+
+    /**
+     * @return the area of the parent this item draws into
+     */
+    public Rect getBounds() {
+        return bounds;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    void clearDirty() {
+        this.dirty = false;
+    }
+
+    /**
+     * @return the radius interpolated between the empty and the filled size for the current animation frame
+     */
+    public float getCurrentRadius() {
+        return currentRadius;
+    }
+
+    /**
+     * @return the background color interpolated between the default and the selected color for the current animation frame
+     */
+    public int getCurrentColor() {
+        return currentColor;
     }
 
     public boolean isAnimatedOut() {
         return animationDirection == PINItemAnimator.ItemAnimationDirection.OUT;
     }
+
+    private static int blendColors(int from, int to, float ratio) {
+        float inverse = 1 - ratio;
+
+        return Color.argb(
+                (int) (Color.alpha(from) * inverse + Color.alpha(to) * ratio),
+                (int) (Color.red(from) * inverse + Color.red(to) * ratio),
+                (int) (Color.green(from) * inverse + Color.green(to) * ratio),
+                (int) (Color.blue(from) * inverse + Color.blue(to) * ratio));
+    }
 }
@@ -1,7 +1,7 @@
 package com.bitcoin.applock.services;
 
-import android.app.KeyguardManager;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
@@ -10,40 +10,46 @@ import androidx.annotation.NonNull;
 import androidx.biometric.BiometricManager;
 import androidx.biometric.BiometricPrompt;
 import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
 
-import com.bitcoin.applock.AppLock;
+import com.bitcoin.applock.DeviceCapabilities;
 import com.bitcoin.applock.R;
 
+import java.util.HashMap;
 import java.util.concurrent.Executor;
 
 public class BiometricsLockService extends LockService {
 
     private static final String PREF_ENROLLMENT_ALLOWED = "biometric_enrollment_allowed";
-    private BiometricPrompt biometricPrompt;
-    private AuthenticationDelegate savedDelegate;
+
+    private static final Executor MAIN_EXECUTOR = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    protected final HashMap<FragmentActivity, HostPrompt> hostPrompts = new HashMap<FragmentActivity, HostPrompt>();
+
+    private BiometricPrompt.PromptInfo promptInfo;
+    private BiometricPrompt.PromptInfo strongPromptInfo;
+    private Configuration promptInfoConfiguration;
 
     @Override
     public boolean isEnrollmentEligible(Context context) {
-        KeyguardManager keyguard = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
-        return keyguard.isDeviceSecure() && isBiometricCompatible(context);
+        return getAppLock(context)
+                .getDeviceCapabilities()
+                .isBiometricAuthenticationAvailable();
     }
 
     boolean isBiometricCompatible(Context context) {
-        BiometricManager biometricManager = BiometricManager.from(context);
-        switch (biometricManager.canAuthenticate(
-                BiometricManager.Authenticators.BIOMETRIC_WEAK |
-                        BiometricManager.Authenticators.DEVICE_CREDENTIAL)) {
-            case BiometricManager.BIOMETRIC_SUCCESS:
-                return true;
-            case BiometricManager.BIOMETRIC_ERROR_NO_HARDWARE:
-            case BiometricManager.BIOMETRIC_ERROR_HW_UNAVAILABLE:
-            case BiometricManager.BIOMETRIC_ERROR_NONE_ENROLLED:
-            case BiometricManager.BIOMETRIC_ERROR_SECURITY_UPDATE_REQUIRED:
-            case BiometricManager.BIOMETRIC_ERROR_UNSUPPORTED:
-            case BiometricManager.BIOMETRIC_STATUS_UNKNOWN:
-                break;
-        }
-        return false;
+        return getAppLock(context)
+                .getDeviceCapabilities()
+                .getBiometricStatus() == BiometricManager.BIOMETRIC_SUCCESS;
     }
 
     public void enroll(Context context, final AuthenticationDelegate delegate) {
@@ -64,99 +70,204 @@ public class BiometricsLockService extends LockService {
 
     protected void authenticate(Context context, boolean localEnrollmentRequired, AuthenticationDelegate delegate) {
 
-        showBiometricPrompt(context, delegate);
+        showBiometricPrompt(context, getPromptInfo(context, false), delegate);
     }
 
+    /**
+     * Authenticate with a strong biometric or the device credential only, since weak biometrics
+     * don't unlock keystore keys such as the SessionKey.
+     */
+    public void authenticateStrong(Context context, AuthenticationDelegate delegate) {
+        showBiometricPrompt(context, getPromptInfo(context, true), delegate);
+    }
 
-    private void showBiometricPrompt(final Context context, final AuthenticationDelegate delegate) {
-        Executor executor;
-        BiometricPrompt.PromptInfo promptInfo;
+    /**
+     * Create the BiometricPrompt for activity up front so every authentication attempt from it
+     * reuses the same prompt. Call this from the activity's onCreate; the prompt is released
+     * when the activity is destroyed.
+     */
+    public void attach(FragmentActivity activity) {
+        getHostPrompt(activity);
+    }
 
-        executor = new Executor() {
-            @Override
-            public void execute(Runnable command) {
-                new Handler(Looper.getMainLooper()).post(command);
-            }
-        };
+    protected HostPrompt getHostPrompt(final FragmentActivity activity) {
+        HostPrompt host = hostPrompts.get(activity);
 
+        if (host != null)
+            return host;
 
-        promptInfo = new BiometricPrompt.PromptInfo.Builder()
-                .setTitle(context.getString(R.string.applock__dialog_title))
-                .setAllowedAuthenticators(
-                        BiometricManager.Authenticators.BIOMETRIC_WEAK |
-                                BiometricManager.Authenticators.DEVICE_CREDENTIAL)
-                .build();
+        host = new HostPrompt(activity);
 
-        savedDelegate = delegate;
+        hostPrompts.put(activity, host);
 
-        biometricPrompt = new BiometricPrompt((FragmentActivity) context,
-                executor, new BiometricPrompt.AuthenticationCallback() {
+        activity.getLifecycle()
+                .addObserver(new LifecycleEventObserver() {
+                    @Override
+                    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+                        if (event != Lifecycle.Event.ON_DESTROY)
+                            return;
 
-            @Override
-            public void onAuthenticationError(int errorCode,
-                                              @NonNull CharSequence errString) {
-                super.onAuthenticationError(errorCode, errString);
-                if (errorCode == 10 || errorCode == 13) {
-                    savedDelegate.onCancel();
-                } else if (errorCode == 11) {
-                    savedDelegate.onAuthenticationFailed(context.getString(R.string.applock__biometric_error_not_enrolled));
-                } else {
-                    savedDelegate.onAuthenticationFailed(context.getString(R.string.applock__fingerprint_error_unrecognized));
-                }
-            }
+                        hostPrompts.remove(activity);
+                        source.getLifecycle().removeObserver(this);
+                    }
+                });
 
-            @Override
-            public void onAuthenticationSucceeded(
-                    @NonNull BiometricPrompt.AuthenticationResult result) {
-                super.onAuthenticationSucceeded(result);
-                notifyEnrolled(context);
-                final @NonNull BiometricPrompt.AuthenticationResult myResult = result;
-                savedDelegate.onAuthenticationSuccess(myResult);
-            }
+        return host;
+    }
+
+    /**
+     * @return the PromptInfo for the current configuration, only rebuilding it when the
+     * configuration (e.g. the locale of its title) has changed
+     */
+    protected BiometricPrompt.PromptInfo getPromptInfo(Context context, boolean strong) {
+        Configuration configuration = context.getResources().getConfiguration();
+
+        if (!configuration.equals(promptInfoConfiguration)) {
+            this.promptInfo = null;
+            this.strongPromptInfo = null;
+            this.promptInfoConfiguration = new Configuration(configuration);
+        }
+
+        if (!strong) {
+            if (promptInfo == null)
+                this.promptInfo = new BiometricPrompt.PromptInfo.Builder()
+                        .setTitle(context.getString(R.string.applock__dialog_title))
+                        .setAllowedAuthenticators(DeviceCapabilities.BIOMETRIC_AUTHENTICATORS)
+                        .build();
+
+            return promptInfo;
+        }
+
+        if (strongPromptInfo == null) {
+            BiometricPrompt.PromptInfo.Builder builder = new BiometricPrompt.PromptInfo.Builder()
+                    .setTitle(context.getString(R.string.applock__dialog_title));
+
+            // Strong biometrics can only be combined with the device credential from Api 30
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+                builder.setAllowedAuthenticators(BiometricManager.Authenticators.BIOMETRIC_STRONG | BiometricManager.Authenticators.DEVICE_CREDENTIAL);
+            else
+                builder.setAllowedAuthenticators(BiometricManager.Authenticators.BIOMETRIC_STRONG)
+                        .setNegativeButtonText(context.getString(android.R.string.cancel));
+
+            this.strongPromptInfo = builder.build();
+        }
+
+        return strongPromptInfo;
+    }
+
+    private void showBiometricPrompt(final Context context, BiometricPrompt.PromptInfo promptInfo, final AuthenticationDelegate delegate) {
+        HostPrompt host = getHostPrompt((FragmentActivity) context);
+        host.delegate = delegate;
 
-            @Override
-            public void onAuthenticationFailed() {
-                super.onAuthenticationFailed();
-                savedDelegate.onAuthenticationFailed(context.getString(R.string.applock__biometric_error));
-            }
-        });
         try {
-            biometricPrompt.authenticate(promptInfo);
+            host.prompt.authenticate(promptInfo);
         } catch (Exception e) {
-            savedDelegate.onAuthenticationFailed(context.getString(R.string.applock__biometrics_prompt_failure));
+            getAppLock(context).invalidateDeviceCapabilities();
+
+            host.delegate = null;
+
+            delegate.onAuthenticationFailed(context.getString(R.string.applock__biometrics_prompt_failure));
         }
     }
 
+    /**
+     * The BiometricPrompt of a single host activity and the delegate of the attempt it's currently
+     * showing. Only ever touched on the main thread.
+     */
+    protected class HostPrompt extends BiometricPrompt.AuthenticationCallback {
+
+        protected final Context context;
+        protected final BiometricPrompt prompt;
+        protected AuthenticationDelegate delegate;
+
+        protected HostPrompt(FragmentActivity activity) {
+            this.context = activity.getApplicationContext();
+            this.prompt = new BiometricPrompt(activity, MAIN_EXECUTOR, this);
+        }
+
+        @Override
+        public void onAuthenticationError(int errorCode, @NonNull CharSequence errString) {
+            super.onAuthenticationError(errorCode, errString);
+
+            // The cached capabilities claimed biometrics were usable, so they're out of date
+            if (errorCode == BiometricPrompt.ERROR_HW_UNAVAILABLE
+                    || errorCode == BiometricPrompt.ERROR_NO_BIOMETRICS
+                    || errorCode == BiometricPrompt.ERROR_HW_NOT_PRESENT
+                    || errorCode == BiometricPrompt.ERROR_NO_DEVICE_CREDENTIAL)
+                getAppLock(context).invalidateDeviceCapabilities();
+
+            AuthenticationDelegate delegate = this.delegate;
+            this.delegate = null;
+
+            if (delegate == null)
+                return;
+
+            if (errorCode == 10 || errorCode == 13) {
+                delegate.onCancel();
+            } else if (errorCode == 11) {
+                delegate.onAuthenticationFailed(context.getString(R.string.applock__biometric_error_not_enrolled));
+            } else {
+                delegate.onAuthenticationFailed(context.getString(R.string.applock__fingerprint_error_unrecognized));
+            }
+        }
+
+        @Override
+        public void onAuthenticationSucceeded(@NonNull BiometricPrompt.AuthenticationResult result) {
+            super.onAuthenticationSucceeded(result);
+
+            notifyEnrolled(context);
+
+            AuthenticationDelegate delegate = this.delegate;
+            this.delegate = null;
+
+            if (delegate != null)
+                delegate.onAuthenticationSuccess(result);
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            super.onAuthenticationFailed();
+
+            // The prompt stays up for another try, so keep the delegate
+            if (delegate != null)
+                delegate.onAuthenticationFailed(context.getString(R.string.applock__biometric_error));
+        }
+    }
 
     @Override
     public boolean isEnrolled(Context context) {
-        return AppLock.getInstance(context)
-                .getPreferences()
+        return getAppLock(context)
+                .getPersistence()
                 .getBoolean(PREF_ENROLLMENT_ALLOWED, false);
     }
 
     protected void notifyEnrolled(Context context) {
-        AppLock.getInstance(context)
-                .getPreferences()
+        getAppLock(context)
+                .getPersistence()
                 .edit()
                 .putBoolean(PREF_ENROLLMENT_ALLOWED, true)
-                .commit();
+                .apply();
+
+        getAppLock(context)
+                .onEnrollmentChanged(BiometricsLockService.class, true);
     }
 
     @Override
     public void invalidateEnrollments(Context context) {
-        AppLock.getInstance(context)
-                .getPreferences()
+        getAppLock(context)
+                .getPersistence()
                 .edit()
                 .putBoolean(PREF_ENROLLMENT_ALLOWED, false)
-                .commit();
+                .apply();
+
+        getAppLock(context)
+                .onEnrollmentChanged(BiometricsLockService.class, false);
     }
 
     @Override
     public void cancelPendingAuthentications(Context context) {
-        if (biometricPrompt != null) {
-            this.biometricPrompt = null;
-        }
+        // The prompts are kept for reuse and not canceled here: the device credential
+        // fallback pauses the host activity while the attempt is still running
     }
 
     public interface AuthenticationDelegate {
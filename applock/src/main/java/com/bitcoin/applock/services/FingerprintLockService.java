@@ -1,16 +1,14 @@
 package com.bitcoin.applock.services;
 
-import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.os.Build;
 
-import androidx.core.content.ContextCompat;
 import androidx.core.hardware.fingerprint.FingerprintManagerCompat;
 import androidx.core.os.CancellationSignal;
 
 import com.bitcoin.applock.AppLock;
+import com.bitcoin.applock.DeviceCapabilities;
 import com.bitcoin.applock.R;
 import com.bitcoin.applock.utils.CipherGenerator;
 
@@ -24,7 +22,7 @@ public class FingerprintLockService extends LockService {
     @Override
     public boolean isEnrollmentEligible(Context context) {
         return Build.VERSION_CODES.M <= Build.VERSION.SDK_INT
-                && context.getResources().getBoolean(R.bool.applock__fingerprint_service_enabled)
+                && getAppLock(context).getConfiguration().fingerprintServiceEnabled
                 && isHardwarePresent(context);
     }
 
@@ -56,7 +54,8 @@ public class FingerprintLockService extends LockService {
      * @return the resolvable error code or -1 if there are no issues requiring a resolution
      */
     protected int getRequiredResolutionErrorCode(Context context, boolean localEnrollmentRequired) {
-        FingerprintManagerCompat manager = FingerprintManagerCompat.from(context);
+        DeviceCapabilities capabilities = getAppLock(context)
+                .getDeviceCapabilities();
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
             return AppLock.ERROR_CODE_SDK_VERSION_MINIMUM;
@@ -64,13 +63,13 @@ public class FingerprintLockService extends LockService {
         if (localEnrollmentRequired && !isEnrolled(context))
             return AppLock.ERROR_CODE_FINGERPRINTS_NOT_LOCALLY_ENROLLED;
 
-        if (!isHardwarePresent(context))
+        if (!capabilities.isFingerprintHardwareDetected())
             return AppLock.ERROR_CODE_FINGERPRINTS_MISSING_HARDWARE;
 
-        if (!manager.hasEnrolledFingerprints())
+        if (!capabilities.hasEnrolledFingerprints())
             return AppLock.ERROR_CODE_FINGERPRINTS_EMPTY;
 
-        if (ContextCompat.checkSelfPermission(context, Manifest.permission.USE_FINGERPRINT) != PackageManager.PERMISSION_GRANTED)
+        if (!capabilities.isFingerprintPermissionGranted())
             return AppLock.ERROR_CODE_FINGERPRINTS_PERMISSION_REQUIRED;
 
         return -1;
@@ -115,54 +114,79 @@ public class FingerprintLockService extends LockService {
         delegate.onAuthenticating(fingerprintCancellationSignal);
 
         try {
-            Cipher cipher = generateAuthCipher(context, false, 0);
+            Cipher cipher = generateAuthCipher(context, false);
             FingerprintManagerCompat.CryptoObject cryptoObject = new FingerprintManagerCompat.CryptoObject(cipher);
 
             FingerprintManagerCompat manager = FingerprintManagerCompat.from(context);
             manager.authenticate(cryptoObject, 0, fingerprintCancellationSignal, callback, null);
+
+            // A CryptoObject only backs a single authentication, so get the next one ready
+            prepareAuthentication(context);
         } catch (Exception e) {
             e.printStackTrace();
 
+            getAppLock(context)
+                    .invalidateDeviceCapabilities();
+
             delegate.onResolutionRequired(AppLock.ERROR_CODE_FINGERPRINTS_MISSING_HARDWARE);
         }
     }
 
+    /**
+     * Initialize the auth Cipher in the background ahead of the next authentication attempt, so
+     * arming the sensor doesn't wait on the KeyStore. Call this as soon as a fingerprint flow may follow.
+     */
+    @SuppressLint("NewApi")
+    public void prepareAuthentication(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return;
+
+        CipherGenerator.prepareAuthCipher(context);
+    }
+
     public boolean isHardwarePresent(Context context) {
-        return FingerprintManagerCompat.from(context)
-                .isHardwareDetected();
+        return getAppLock(context)
+                .getDeviceCapabilities()
+                .isFingerprintHardwareDetected();
     }
 
     @Override
     public boolean isEnrolled(Context context) {
-        return AppLock.getInstance(context)
-                .getPreferences()
+        return getAppLock(context)
+                .getPersistence()
                 .getBoolean(PREF_ENROLLMENT_ALLOWED, false);
     }
 
     protected void notifyEnrolled(Context context) {
-        AppLock.getInstance(context)
-                .getPreferences()
+        getAppLock(context)
+                .getPersistence()
                 .edit()
                 .putBoolean(PREF_ENROLLMENT_ALLOWED, true)
-                .commit();
+                .apply();
+
+        getAppLock(context)
+                .onEnrollmentChanged(FingerprintLockService.class, true);
     }
 
     @SuppressLint("NewApi")
-    protected Cipher generateAuthCipher(Context context, boolean forceRegenerate, int attempts) throws Exception {
+    protected Cipher generateAuthCipher(Context context, boolean forceRegenerate) throws Exception {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
             throw new RuntimeException("generateAuthCipher() not supported before Api 23");
 
         return new CipherGenerator()
-                .generateAuthCipher(context, forceRegenerate, attempts);
+                .generateAuthCipher(context, forceRegenerate);
     }
 
     @Override
     public void invalidateEnrollments(Context context) {
-        AppLock.getInstance(context)
-                .getPreferences()
+        getAppLock(context)
+                .getPersistence()
                 .edit()
                 .putBoolean(PREF_ENROLLMENT_ALLOWED, false)
-                .commit();
+                .apply();
+
+        getAppLock(context)
+                .onEnrollmentChanged(FingerprintLockService.class, false);
     }
 
     @Override
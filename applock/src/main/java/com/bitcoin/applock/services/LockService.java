@@ -2,8 +2,33 @@ package com.bitcoin.applock.services;
 
 import android.content.Context;
 
+import com.bitcoin.applock.AppLock;
+
 public abstract class LockService {
 
+    protected volatile AppLock appLock;
+
+    /**
+     * Called by the LockServiceRegistry with the AppLock that owns it, before the service is
+     * published. Services use it instead of AppLock.getInstance(Context), which would recurse
+     * if they're asked about enrollment before that AppLock is fully constructed.
+     */
+    void attach(AppLock appLock) {
+        this.appLock = appLock;
+    }
+
+    /**
+     * @return the AppLock this service was registered with, or the singleton if it was created
+     * outside of a registry
+     */
+    protected AppLock getAppLock(Context context) {
+        AppLock appLock = this.appLock;
+
+        return appLock == null
+                ? AppLock.getInstance(context)
+                : appLock;
+    }
+
     public abstract boolean isEnrolled(Context context);
 
     public abstract boolean isEnrollmentEligible(Context context);
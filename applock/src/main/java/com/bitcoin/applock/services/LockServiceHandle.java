@@ -0,0 +1,83 @@
+package com.bitcoin.applock.services;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A typed key for a LockService. Every handle gets a small, process-wide unique index, which
+ * LockServiceRegistry uses as an array index and AppLock as the service's enrollment flag bit.
+ * Create handles for custom services once, e.g. as static final fields.
+ */
+public final class LockServiceHandle<T extends LockService> {
+
+    public static final int MAX_HANDLES = 32;
+
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+
+    public static final LockServiceHandle<PINLockService> PIN = create(PINLockService.class, 0, new Factory<PINLockService>() {
+        public PINLockService create() {
+            return new PINLockService();
+        }
+    });
+
+    public static final LockServiceHandle<BiometricsLockService> BIOMETRICS = create(BiometricsLockService.class, 1, new Factory<BiometricsLockService>() {
+        public BiometricsLockService create() {
+            return new BiometricsLockService();
+        }
+    });
+
+    public static final LockServiceHandle<FingerprintLockService> FINGERPRINT = create(FingerprintLockService.class, 2, new Factory<FingerprintLockService>() {
+        public FingerprintLockService create() {
+            return new FingerprintLockService();
+        }
+    });
+
+    private final int index;
+    private final Class<T> serviceClass;
+    private final int cost;
+    private final Factory<T> factory;
+
+    private LockServiceHandle(int index, Class<T> serviceClass, int cost, Factory<T> factory) {
+        this.index = index;
+        this.serviceClass = serviceClass;
+        this.cost = cost;
+        this.factory = factory;
+    }
+
+    /**
+     * @param cost the relative cost of asking the service whether the user is enrolled. Cheaper
+     * services are asked first, and services that are never asked are never instantiated.
+     * @param factory creates the service the first time it's used
+     */
+    public static <T extends LockService> LockServiceHandle<T> create(Class<T> serviceClass, int cost, Factory<T> factory) {
+        int index = nextIndex.getAndIncrement();
+
+        if (MAX_HANDLES <= index)
+            throw new RuntimeException("No more than " + MAX_HANDLES + " LockServiceHandles can be created");
+
+        return new LockServiceHandle<T>(index, serviceClass, cost, factory);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getEnrollmentFlag() {
+        return 1 << index;
+    }
+
+    public Class<T> getServiceClass() {
+        return serviceClass;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    T newInstance() {
+        return factory.create();
+    }
+
+    public interface Factory<T extends LockService> {
+        T create();
+    }
+}
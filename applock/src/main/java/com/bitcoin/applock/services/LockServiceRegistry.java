@@ -0,0 +1,129 @@
+package com.bitcoin.applock.services;
+
+import com.bitcoin.applock.AppLock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The immutable set of LockServices AppLock was configured with, indexed by LockServiceHandle.
+ * Services are only instantiated the first time they're requested. Safe to use from any thread.
+ */
+public final class LockServiceRegistry {
+
+    private final LockServiceHandle<?>[] handlesByIndex;
+    private final LockServiceHandle<?>[] handlesByCost;
+    private final HashMap<Class, LockServiceHandle<?>> handlesByClass = new HashMap<Class, LockServiceHandle<?>>();
+    private final AtomicReferenceArray<LockService> services;
+    private final int enrollmentFlags;
+    private final AppLock owner;
+
+    /**
+     * @param owner the AppLock handed to every service this instantiates. It may still be under
+     *              construction, so this only keeps the reference.
+     */
+    public LockServiceRegistry(AppLock owner, List<LockServiceHandle<?>> handles) {
+        this.owner = owner;
+
+        int size = 0;
+        int flags = 0;
+
+        for (LockServiceHandle<?> handle : handles) {
+            size = Math.max(size, handle.getIndex() + 1);
+            flags |= handle.getEnrollmentFlag();
+        }
+
+        this.handlesByIndex = new LockServiceHandle<?>[size];
+        this.services = new AtomicReferenceArray<LockService>(size);
+        this.enrollmentFlags = flags;
+
+        for (LockServiceHandle<?> handle : handles) {
+            handlesByIndex[handle.getIndex()] = handle;
+            handlesByClass.put(handle.getServiceClass(), handle);
+        }
+
+        ArrayList<LockServiceHandle<?>> sorted = new ArrayList<LockServiceHandle<?>>(handlesByClass.values());
+
+        Collections.sort(sorted, new Comparator<LockServiceHandle<?>>() {
+            public int compare(LockServiceHandle<?> first, LockServiceHandle<?> second) {
+                return first.getCost() != second.getCost()
+                        ? first.getCost() < second.getCost() ? -1 : 1
+                        : first.getIndex() - second.getIndex();
+            }
+        });
+
+        this.handlesByCost = sorted.toArray(new LockServiceHandle<?>[sorted.size()]);
+    }
+
+    public boolean isRegistered(LockServiceHandle<?> handle) {
+        int index = handle.getIndex();
+
+        return index < handlesByIndex.length && handlesByIndex[index] == handle;
+    }
+
+    /**
+     * @return the service for handle, instantiating it on first use, or null if it isn't registered
+     */
+    public <T extends LockService> T get(LockServiceHandle<T> handle) {
+        if (!isRegistered(handle))
+            return null;
+
+        int index = handle.getIndex();
+        LockService service = services.get(index);
+
+        if (service != null)
+            return (T) service;
+
+        // Only ever instantiated and attached once, so no discarded instance holds on to the owner
+        synchronized (this) {
+            service = services.get(index);
+
+            if (service == null) {
+                service = handle.newInstance();
+                service.attach(owner);
+
+                services.set(index, service);
+            }
+        }
+
+        return (T) service;
+    }
+
+    /**
+     * @return the registered service of exactly that class, or null if there is none
+     */
+    public <T extends LockService> T get(Class<T> named) {
+        LockServiceHandle<T> handle = (LockServiceHandle<T>) handlesByClass.get(named);
+
+        return handle == null ? null : get(handle);
+    }
+
+    /**
+     * @return the service for handle if it has already been instantiated, without instantiating it
+     */
+    public LockService peek(LockServiceHandle<?> handle) {
+        return isRegistered(handle) ? services.get(handle.getIndex()) : null;
+    }
+
+    public LockServiceHandle<?> getHandle(Class named) {
+        return handlesByClass.get(named);
+    }
+
+    /**
+     * @return the registered handles, cheapest first. Don't modify the returned array.
+     */
+    public LockServiceHandle<?>[] getHandlesByCost() {
+        return handlesByCost;
+    }
+
+    /**
+     * @return the enrollment flags of all registered services combined
+     */
+    public int getEnrollmentFlags() {
+        return enrollmentFlags;
+    }
+}
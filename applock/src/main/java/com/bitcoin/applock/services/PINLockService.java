@@ -1,13 +1,37 @@
 package com.bitcoin.applock.services;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
-import com.bitcoin.applock.AppLock;
+import com.bitcoin.applock.AppLockConfiguration;
+import com.bitcoin.applock.utils.AppLockExecutors;
 import com.bitcoin.applock.utils.CryptoUtils;
+import com.bitcoin.applock.utils.KeyDerivation;
+import com.bitcoin.applock.utils.KeyLostException;
+import com.bitcoin.applock.utils.KeystoreHmacKeyDerivation;
+import com.bitcoin.applock.utils.Pbkdf2KeyDerivation;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PINLockService extends LockService {
 
     private static final String PREF_SAVED_LOCKED_PASSWORD = "pin__saved_locked_password";
+    private static final String PREF_KEY_DERIVATION = "pin__key_derivation";
+
+    protected volatile KeyDerivation keyDerivation;
+
+    // Held while calibrating, which takes seconds, so it must never be the service's own monitor
+    protected final Object keyDerivationLock = new Object();
+
+    protected final Handler mainHandler = new Handler(Looper.getMainLooper());
+    protected final Object pendingAuthenticationLock = new Object();
+    protected PendingAuthentication pendingAuthentication;
+    private byte[] secretBuffer;
+    private byte[] digestBuffer;
 
     @Override
     public boolean isEnrollmentEligible(Context context) {
@@ -15,53 +39,503 @@ public class PINLockService extends LockService {
         return true;
     }
 
-    public void authenticate(Context context, String pin, AuthenticationDelegate eventListener) {
+    /**
+     * Verify pin against the enrolled record on the crypto Executor. The delegate is always
+     * called back on the main thread, and never after cancelPendingAuthentications().
+     *
+     * @return false if a previous verification is still running, in which case this one is
+     * rejected and the delegate will not be called
+     */
+    public boolean authenticate(Context context, String pin, AuthenticationDelegate eventListener) {
+        char[] chars = pin.toCharArray();
+
+        try {
+            return authenticate(context, chars, chars.length, eventListener);
+        } finally {
+            CryptoUtils.wipe(chars);
+        }
+    }
+
+    /**
+     * Same as authenticate(Context, String, AuthenticationDelegate), but reads the PIN from the
+     * first length chars of pin. The chars are encoded into a reusable buffer before this returns,
+     * so the caller is free to wipe pin immediately afterwards.
+     */
+    public boolean authenticate(Context context, char[] pin, int length, AuthenticationDelegate eventListener) {
         if (!isEnrolled(context)) {
             eventListener.onNoPIN();
-            return;
+            return true;
         }
 
-        if (!getEnrolledPIN(context).equals(CryptoUtils.encryptSha1(pin))) {
-            eventListener.onPINDoesNotMatch();
-            return;
+        synchronized (pendingAuthenticationLock) {
+            if (pendingAuthentication != null)
+                return false;
+
+            byte[] secret = acquireBuffer(secretBuffer, CryptoUtils.maxEncodedLength(length));
+            byte[] digest = acquireBuffer(digestBuffer, KeyDerivation.HASH_LENGTH);
+
+            this.secretBuffer = null;
+            this.digestBuffer = null;
+
+            PendingAuthentication pending = new PendingAuthentication(
+                    context.getApplicationContext(),
+                    getEnrolledPIN(context),
+                    secret,
+                    CryptoUtils.encodeUtf8(pin, length, secret),
+                    length,
+                    digest,
+                    eventListener);
+
+            try {
+                pending.future = AppLockExecutors.getCryptoExecutor()
+                        .submit(pending);
+            } catch (RejectedExecutionException e) {
+                e.printStackTrace();
+
+                releaseBuffers(pending);
+
+                return false;
+            }
+
+            this.pendingAuthentication = pending;
+
+            return true;
+        }
+    }
+
+    private static byte[] acquireBuffer(byte[] buffer, int capacity) {
+        return buffer == null || buffer.length < capacity
+                ? new byte[capacity]
+                : buffer;
+    }
+
+    /**
+     * Wipe a finished verification's buffers and keep them for the next one.
+     */
+    protected void releaseBuffers(PendingAuthentication pending) {
+        CryptoUtils.wipe(pending.secret);
+        CryptoUtils.wipe(pending.digest);
+
+        synchronized (pendingAuthenticationLock) {
+            if (secretBuffer == null)
+                this.secretBuffer = pending.secret;
+
+            if (digestBuffer == null)
+                this.digestBuffer = pending.digest;
+        }
+    }
+
+    /**
+     * @return true if a verification has been submitted and has not yet been delivered or canceled
+     */
+    public boolean isAuthenticating() {
+        synchronized (pendingAuthenticationLock) {
+            return pendingAuthentication != null;
+        }
+    }
+
+    protected void deliverAuthenticationResult(final PendingAuthentication pending, final boolean matches) {
+        mainHandler.post(new Runnable() {
+            public void run() {
+                if (!completeAuthentication(pending))
+                    return;
+
+                if (matches)
+                    pending.eventListener.onPINMatches();
+                else
+                    pending.eventListener.onPINDoesNotMatch();
+            }
+        });
+    }
+
+    protected void deliverPINKeyLost(final PendingAuthentication pending) {
+        mainHandler.post(new Runnable() {
+            public void run() {
+                if (completeAuthentication(pending))
+                    pending.eventListener.onPINKeyLost();
+            }
+        });
+    }
+
+    /**
+     * @return true if pending is still the current verification, which it no longer is after this
+     */
+    private boolean completeAuthentication(PendingAuthentication pending) {
+        synchronized (pendingAuthenticationLock) {
+            if (pending.canceled || pendingAuthentication != pending)
+                return false;
+
+            pendingAuthentication = null;
+
+            return true;
         }
+    }
+
+    /**
+     * @return true if record was not created by the current KeyDerivation
+     */
+    protected boolean isUpgradeRequired(Context context, String record) {
+        if (!KeyDerivation.isRecord(record))
+            return true;
+
+        return !record.startsWith(getKeyDerivation(context).encodeHeader() + "$");
+    }
 
-        eventListener.onPINMatches();
+    /**
+     * Re-derive a PIN that just matched an outdated record with the current KeyDerivation and
+     * persist it. The plaintext is only available at this point, so this is the one place a
+     * stored PIN can be migrated without asking the user to enroll again. This runs on the
+     * crypto Executor after the successful result has already been delivered.
+     */
+    protected void upgradeEnrolledPIN(Context context, String verifiedRecord, byte[] secret, int secretLength) {
+        try {
+            if (!isUpgradeRequired(context, verifiedRecord))
+                return;
+
+            String upgraded = getKeyDerivation(context)
+                    .createRecord(secret, secretLength);
+
+            replaceEnrolledPIN(context, verifiedRecord, upgraded);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replace the enrolled record only if it's still the one that was verified, so an upgrade
+     * finishing late can never overwrite a newer enrollment or an invalidation.
+     */
+    protected synchronized void replaceEnrolledPIN(Context context, String expectedRecord, String record) {
+        if (!expectedRecord.equals(getEnrolledPIN(context)))
+            return;
+
+        getAppLock(context)
+                .getPersistence()
+                .edit()
+                .putString(PREF_SAVED_LOCKED_PASSWORD, record)
+                .apply();
+    }
+
+    /**
+     * @param pinLength the number of chars the PIN had, which legacy SHA-1 records were hashed with
+     * @param digest    scratch space of at least KeyDerivation.HASH_LENGTH bytes, wiped before returning
+     */
+    protected boolean matchesEnrolledPIN(String record, byte[] secret, int secretLength, int pinLength, byte[] digest) throws GeneralSecurityException {
+        // PINs enrolled before key derivation was introduced are stored as an unsalted SHA-1
+        if (!KeyDerivation.isRecord(record))
+            return CryptoUtils.matchesSha1(secret, Math.min(pinLength, secretLength), record, digest);
+
+        return KeyDerivation.matches(secret, secretLength, record, digest);
     }
 
     @Override
     public boolean isEnrolled(Context context) {
-        return AppLock.getInstance(context)
-                .getPreferences()
+        return getAppLock(context)
+                .getPersistence()
                 .getString(PREF_SAVED_LOCKED_PASSWORD, null) != null;
     }
 
+    /**
+     * @return true if the enrolled PIN can only be verified with the keystore HMAC key
+     */
+    public boolean isKeystoreBacked(Context context) {
+        return KeyDerivation.fromRecord(getEnrolledPIN(context)) instanceof KeystoreHmacKeyDerivation;
+    }
+
     private String getEnrolledPIN(Context context) {
-        return AppLock.getInstance(context)
-                .getPreferences()
+        return getAppLock(context)
+                .getPersistence()
                 .getString(PREF_SAVED_LOCKED_PASSWORD, null);
     }
 
+    /**
+     * @deprecated blocks for a full key derivation, and for calibration on first use. Use
+     * enroll(Context, char[], int, EnrollmentDelegate) instead.
+     */
+    @Deprecated
     public void enroll(Context context, String pin) {
-        AppLock.getInstance(context)
-                .getPreferences()
+        char[] chars = pin.toCharArray();
+
+        try {
+            enroll(context, chars, chars.length);
+        } finally {
+            CryptoUtils.wipe(chars);
+        }
+    }
+
+    /**
+     * Enroll the first length chars of pin. The caller is free to wipe pin once this returns.
+     *
+     * @deprecated blocks for a full key derivation, and for calibration on first use. Use
+     * enroll(Context, char[], int, EnrollmentDelegate) instead.
+     */
+    @Deprecated
+    public void enroll(Context context, char[] pin, int length) {
+        byte[] secret = new byte[CryptoUtils.maxEncodedLength(length)];
+        String record;
+
+        try {
+            int secretLength = CryptoUtils.encodeUtf8(pin, length, secret);
+
+            record = getKeyDerivation(context)
+                    .createRecord(secret, secretLength);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Unable to derive a key for the PIN", e);
+        } finally {
+            CryptoUtils.wipe(secret);
+        }
+
+        saveEnrolledPIN(context, record);
+    }
+
+    /**
+     * Enroll the first length chars of pin on the crypto Executor, including the calibration the
+     * first enrollment needs. The chars are encoded before this returns, so the caller is free
+     * to wipe pin right away. The delegate is always called back on the main thread.
+     */
+    public void enroll(Context context, char[] pin, int length, final EnrollmentDelegate delegate) {
+        final Context applicationContext = context.getApplicationContext();
+        final byte[] secret = new byte[CryptoUtils.maxEncodedLength(length)];
+        final int secretLength = CryptoUtils.encodeUtf8(pin, length, secret);
+
+        Runnable enrollment = new Runnable() {
+            public void run() {
+                boolean enrolled = false;
+
+                try {
+                    String record = getKeyDerivation(applicationContext)
+                            .createRecord(secret, secretLength);
+
+                    saveEnrolledPIN(applicationContext, record);
+
+                    enrolled = true;
+                } catch (Exception | Error e) {
+                    e.printStackTrace();
+                } finally {
+                    CryptoUtils.wipe(secret);
+                }
+
+                deliverEnrollmentResult(delegate, enrolled);
+            }
+        };
+
+        try {
+            AppLockExecutors.getCryptoExecutor()
+                    .execute(enrollment);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+
+            CryptoUtils.wipe(secret);
+            deliverEnrollmentResult(delegate, false);
+        }
+    }
+
+    protected void deliverEnrollmentResult(final EnrollmentDelegate delegate, final boolean enrolled) {
+        mainHandler.post(new Runnable() {
+            public void run() {
+                if (enrolled)
+                    delegate.onEnrolled();
+                else
+                    delegate.onEnrollmentFailed();
+            }
+        });
+    }
+
+    protected synchronized void saveEnrolledPIN(Context context, String record) {
+        getAppLock(context)
+                .getPersistence()
+                .edit()
+                .putString(PREF_SAVED_LOCKED_PASSWORD, record)
+                .apply();
+
+        getAppLock(context)
+                .onEnrollmentChanged(PINLockService.class, true);
+
+        // A new enrollment comes with a new key, if it needs one
+        getAppLock(context)
+                .onKeyInvalidated(LockServiceHandle.PIN, false);
+    }
+
+    /**
+     * @return the KeyDerivation new PINs are enrolled with, calibrating it for this device
+     * the first time it's requested for the configured algorithm, which blocks
+     */
+    public KeyDerivation getKeyDerivation(Context context) {
+        KeyDerivation keyDerivation = this.keyDerivation;
+
+        if (keyDerivation != null)
+            return keyDerivation;
+
+        synchronized (keyDerivationLock) {
+            if (this.keyDerivation != null)
+                return this.keyDerivation;
+
+            return loadKeyDerivation(context);
+        }
+    }
+
+    private KeyDerivation loadKeyDerivation(Context context) {
+        String algorithm = getAppLock(context).getConfiguration().pinKeyDerivationAlgorithm;
+        KeyDerivation saved = KeyDerivation.fromRecord(getAppLock(context)
+                .getPersistence()
+                .getString(PREF_KEY_DERIVATION, null));
+
+        if (saved != null && saved.getAlgorithm().equals(algorithm)) {
+            this.keyDerivation = saved;
+
+            return saved;
+        }
+
+        return calibrateKeyDerivationLocked(context);
+    }
+
+    /**
+     * Measure the configured algorithm on this device and pick the cost that makes a single
+     * verification take about applock__pin_key_derivation_target_ms. This blocks for a
+     * multiple of that target, so prefer calling it off the main thread ahead of enrollment.
+     */
+    public KeyDerivation calibrateKeyDerivation(Context context) {
+        synchronized (keyDerivationLock) {
+            return calibrateKeyDerivationLocked(context);
+        }
+    }
+
+    private KeyDerivation calibrateKeyDerivationLocked(Context context) {
+        AppLockConfiguration configuration = getAppLock(context)
+                .getConfiguration();
+
+        String algorithm = configuration.pinKeyDerivationAlgorithm;
+        int targetMs = configuration.pinKeyDerivationTargetMs;
+
+        KeyDerivation base = KeyDerivation.forAlgorithm(algorithm);
+
+        if (base == null)
+            base = new Pbkdf2KeyDerivation(Pbkdf2KeyDerivation.MINIMUM_ITERATIONS);
+
+        try {
+            this.keyDerivation = KeyDerivation.calibrate(base, targetMs);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+
+            this.keyDerivation = base;
+        }
+
+        getAppLock(context)
+                .getPersistence()
                 .edit()
-                .putString(PREF_SAVED_LOCKED_PASSWORD, CryptoUtils.encryptSha1(pin))
-                .commit();
+                .putString(PREF_KEY_DERIVATION, keyDerivation.encodeHeader())
+                .apply();
+
+        return keyDerivation;
     }
 
     @Override
-    public void invalidateEnrollments(Context context) {
-        AppLock.getInstance(context)
-                .getPreferences()
+    public synchronized void invalidateEnrollments(Context context) {
+        getAppLock(context)
+                .getPersistence()
                 .edit()
                 .remove(PREF_SAVED_LOCKED_PASSWORD)
-                .commit();
+                .apply();
+
+        getAppLock(context)
+                .onEnrollmentChanged(PINLockService.class, false);
     }
 
     @Override
     public void cancelPendingAuthentications(Context context) {
-        // There are none
+        synchronized (pendingAuthenticationLock) {
+            if (pendingAuthentication == null)
+                return;
+
+            pendingAuthentication.cancel();
+            this.pendingAuthentication = null;
+        }
+    }
+
+    protected class PendingAuthentication implements Runnable {
+
+        protected final Context context;
+        protected final String record;
+        protected final byte[] secret;
+        protected final int secretLength;
+        protected final int pinLength;
+        protected final byte[] digest;
+        protected final AuthenticationDelegate eventListener;
+        protected final AtomicBoolean started = new AtomicBoolean(false);
+        protected volatile boolean canceled = false;
+        protected Future<?> future;
+
+        protected PendingAuthentication(Context context, String record, byte[] secret, int secretLength, int pinLength, byte[] digest, AuthenticationDelegate eventListener) {
+            this.context = context;
+            this.record = record;
+            this.secret = secret;
+            this.secretLength = secretLength;
+            this.pinLength = pinLength;
+            this.digest = digest;
+            this.eventListener = eventListener;
+        }
+
+        @Override
+        public void run() {
+            if (started.getAndSet(true))
+                return;
+
+            boolean delivered = false;
+
+            try {
+                if (canceled)
+                    return;
+
+                boolean matches = matchesEnrolledPIN(record, secret, secretLength, pinLength, digest);
+
+                if (canceled)
+                    return;
+
+                deliverAuthenticationResult(this, matches);
+                delivered = true;
+
+                if (matches)
+                    upgradeEnrolledPIN(context, record, secret, secretLength);
+            } catch (KeyLostException e) {
+                // No PIN can ever match again, so this mustn't count as a wrong one
+                e.printStackTrace();
+
+                if (!canceled)
+                    deliverPINKeyLost(this);
+
+                delivered = true;
+            } catch (GeneralSecurityException e) {
+                // Interrupted by cancel(), or the derivation itself failed
+                if (!canceled)
+                    e.printStackTrace();
+            } catch (RuntimeException | Error e) {
+                // A corrupt record, a keystore failure, or scrypt running out of memory. Anything
+                // escaping here would vanish into the Future and leave the verification pending forever.
+                e.printStackTrace();
+            } finally {
+                if (!delivered && !canceled)
+                    deliverAuthenticationResult(this, false);
+
+                releaseBuffers(this);
+            }
+        }
+
+        protected void cancel() {
+            this.canceled = true;
+
+            if (future != null)
+                future.cancel(true);
+
+            // If it never started, run() will never release the buffers itself
+            if (!started.getAndSet(true))
+                releaseBuffers(this);
+        }
+    }
+
+    public interface EnrollmentDelegate {
+        void onEnrolled();
+
+        void onEnrollmentFailed();
     }
 
     public interface AuthenticationDelegate {
@@ -69,6 +543,12 @@ public class PINLockService extends LockService {
 
         void onPINDoesNotMatch();
 
+        /**
+         * The keystore key the enrolled PIN was stored with is gone, so it can't be verified
+         * anymore, and the user has to enroll again.
+         */
+        void onPINKeyLost();
+
         void onPINMatches();
     }
 }
@@ -0,0 +1,82 @@
+package com.bitcoin.applock.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AppLockExecutors {
+
+    private static Executor persistenceExecutor;
+    private static ExecutorService cryptoExecutor;
+    private static Executor probeExecutor;
+
+    private static final int CRYPTO_QUEUE_CAPACITY = 4;
+    private static final long CRYPTO_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * @return a single-threaded Executor for disk writes. Tasks run strictly in submission order.
+     */
+    public static synchronized Executor getPersistenceExecutor() {
+        if (persistenceExecutor == null)
+            persistenceExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("applock-persistence"));
+
+        return persistenceExecutor;
+    }
+
+    /**
+     * @return a single-threaded, bounded ExecutorService for CPU-bound key derivation work, so at
+     * most one expensive derivation competes with the UI at a time. Submissions beyond the queue
+     * capacity are rejected with a RejectedExecutionException, and the thread exits when idle.
+     */
+    public static synchronized ExecutorService getCryptoExecutor() {
+        if (cryptoExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    1,
+                    1,
+                    CRYPTO_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(CRYPTO_QUEUE_CAPACITY),
+                    new NamedThreadFactory("applock-crypto"));
+
+            executor.allowCoreThreadTimeOut(true);
+
+            cryptoExecutor = executor;
+        }
+
+        return cryptoExecutor;
+    }
+
+    /**
+     * @return a single-threaded Executor for short blocking calls into system services, kept
+     * apart from the persistence and crypto threads so a slow binder call never delays either.
+     */
+    public static synchronized Executor getProbeExecutor() {
+        if (probeExecutor == null)
+            probeExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("applock-probe"));
+
+        return probeExecutor;
+    }
+
+    protected static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
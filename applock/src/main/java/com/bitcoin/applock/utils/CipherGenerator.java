@@ -12,58 +12,215 @@ import com.bitcoin.applock.R;
 
 import java.security.KeyStore;
 import java.security.UnrecoverableKeyException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
 
 @RequiresApi(api = Build.VERSION_CODES.M)
 public class CipherGenerator {
 
     private static final String KEYSTORE_NAME = "AndroidKeyStore";
+    private static final String CIPHER_TRANSFORMATION = KeyProperties.KEY_ALGORITHM_AES
+            + "/" + KeyProperties.BLOCK_MODE_CBC
+            + "/" + KeyProperties.ENCRYPTION_PADDING_PKCS7;
 
-    public Cipher generateAuthCipher(Context context, boolean forceRegenerate, int attempts) throws Exception {
+    // An invalidated key is regenerated once. If the new key fails as well, it's not going to get better.
+    private static final int MAX_REGENERATIONS = 1;
+
+    private static KeyStore keyStore;
+    private static Future<Cipher> preparedAuthCipher;
+
+    /**
+     * @return the loaded AndroidKeyStore, shared by the whole process
+     */
+    public static synchronized KeyStore getKeyStore() throws Exception {
+        if (keyStore == null) {
+            KeyStore loading = KeyStore.getInstance(KEYSTORE_NAME);
+            loading.load(null);
+
+            keyStore = loading;
+        }
+
+        return keyStore;
+    }
+
+    /**
+     * Return an initialized Cipher for the fingerprint auth key, picking up the one prepared by
+     * prepareAuthCipher(Context) when it's ready instead of creating it on the calling thread.
+     */
+    public Cipher generateAuthCipher(Context context, boolean forceRegenerate) throws Exception {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
             throw new RuntimeException("generateAuthCipher() not supported before Api 23");
 
-        String alias = context.getString(R.string.applock__fingerprint_alias);
+        Cipher prepared = takePreparedAuthCipher();
+
+        if (prepared != null && !forceRegenerate)
+            return prepared;
+
+        return createAuthCipher(context.getString(R.string.applock__fingerprint_alias), forceRegenerate);
+    }
+
+    /**
+     * Initialize the next auth Cipher on a background thread so the next generateAuthCipher
+     * call only has to pick it up. Each Cipher can back a single authentication.
+     */
+    public static void prepareAuthCipher(Context context) {
+        final String alias = context.getString(R.string.applock__fingerprint_alias);
+
+        synchronized (CipherGenerator.class) {
+            if (preparedAuthCipher != null)
+                return;
+
+            try {
+                preparedAuthCipher = AppLockExecutors.getCryptoExecutor()
+                        .submit(new Callable<Cipher>() {
+                            public Cipher call() throws Exception {
+                                return createAuthCipher(alias, false);
+                            }
+                        });
+            } catch (RejectedExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Forget any prepared Cipher, e.g. because the key it was initialized with has been replaced.
+     */
+    public static synchronized void discardPreparedAuthCipher() {
+        if (preparedAuthCipher == null)
+            return;
+
+        preparedAuthCipher.cancel(false);
+        preparedAuthCipher = null;
+    }
+
+    /**
+     * @return the prepared Cipher if it's ready, or null if there is none or it failed
+     */
+    private static Cipher takePreparedAuthCipher() {
+        Future<Cipher> prepared;
+
+        synchronized (CipherGenerator.class) {
+            prepared = preparedAuthCipher;
+
+            if (prepared == null || !prepared.isDone())
+                return null;
+
+            preparedAuthCipher = null;
+        }
+
+        try {
+            return prepared.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return null;
+        }
+    }
+
+    protected static Cipher createAuthCipher(String alias, boolean forceRegenerate) throws Exception {
+        for (int regenerations = 0; ; regenerations++) {
+            try {
+                ensureAuthKey(alias, forceRegenerate || 0 < regenerations);
+
+                Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+                cipher.init(Cipher.ENCRYPT_MODE, getKeyStore().getKey(alias, null));
+
+                return cipher;
+            } catch (KeyPermanentlyInvalidatedException | UnrecoverableKeyException e) {
+                e.printStackTrace();
+
+                if (MAX_REGENERATIONS <= regenerations)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the AES-GCM key stored under alias, or null if it doesn't exist
+     */
+    public static synchronized SecretKey getDataKey(String alias) throws Exception {
+        KeyStore keyStore = getKeyStore();
+
+        if (!keyStore.containsAlias(alias))
+            return null;
 
-        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_NAME);
-        keyStore.load(null);
+        return (SecretKey) keyStore.getKey(alias, null);
+    }
+
+    /**
+     * Get the AES-GCM key stored under alias, creating it if it doesn't exist yet. Unlike the auth
+     * key, using it doesn't require the user to authenticate with the device: it never leaves the
+     * keystore, and callers gate its use behind AppLock instead.
+     */
+    public static synchronized SecretKey getOrCreateDataKey(String alias) throws Exception {
+        KeyStore keyStore = getKeyStore();
 
-        if (forceRegenerate || !keyStore.containsAlias(alias)) {
+        if (!keyStore.containsAlias(alias)) {
             KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_NAME);
             keyGenerator.init(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-                    .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
-                    .setUserAuthenticationRequired(true)
-                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(256)
                     .build());
 
-            keyGenerator.generateKey();
+            return keyGenerator.generateKey();
         }
 
-        String cipherFormat = String.format(
-                "%s/%s/%s",
-                KeyProperties.KEY_ALGORITHM_AES,
-                KeyProperties.BLOCK_MODE_CBC,
-                KeyProperties.ENCRYPTION_PADDING_PKCS7);
+        return (SecretKey) keyStore.getKey(alias, null);
+    }
+
+    /**
+     * Make sure the fingerprint auth key exists and can still be initialized, replacing it if it
+     * was permanently invalidated. Meant for a background thread.
+     */
+    public static KeyHealthChecker.Status checkAuthKey(Context context) {
+        String alias = context.getString(R.string.applock__fingerprint_alias);
 
         try {
-            Cipher cipher = Cipher.getInstance(cipherFormat);
-            cipher.init(Cipher.ENCRYPT_MODE, keyStore.getKey(alias, null));
+            if (!getKeyStore().containsAlias(alias)) {
+                ensureAuthKey(alias, false);
+                discardPreparedAuthCipher();
 
-            return cipher;
-        } catch (KeyPermanentlyInvalidatedException e) {
-            e.printStackTrace();
+                return KeyHealthChecker.Status.MISSING;
+            }
 
-            if (1 < attempts)
-                return generateAuthCipher(context, true, attempts + 1);
-        } catch (UnrecoverableKeyException e) {
+            try {
+                Cipher.getInstance(CIPHER_TRANSFORMATION)
+                        .init(Cipher.ENCRYPT_MODE, getKeyStore().getKey(alias, null));
+
+                return KeyHealthChecker.Status.HEALTHY;
+            } catch (KeyPermanentlyInvalidatedException | UnrecoverableKeyException e) {
+                ensureAuthKey(alias, true);
+                discardPreparedAuthCipher();
+
+                return KeyHealthChecker.Status.INVALIDATED;
+            }
+        } catch (Exception e) {
             e.printStackTrace();
 
-            if (1 < attempts)
-                return generateAuthCipher(context, true, attempts + 1);
+            return KeyHealthChecker.Status.HEALTHY;
         }
+    }
+
+    private static void ensureAuthKey(String alias, boolean forceRegenerate) throws Exception {
+        KeyStore keyStore = getKeyStore();
+
+        if (!forceRegenerate && keyStore.containsAlias(alias))
+            return;
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_NAME);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
+                .setUserAuthenticationRequired(true)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
+                .build());
 
-        return null;
+        keyGenerator.generateKey();
     }
 }
@@ -2,13 +2,29 @@ package com.bitcoin.applock.utils;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 public class CryptoUtils {
 
+    private static final SecureRandom random = new SecureRandom();
+    private static final int SHA1_LENGTH = 20;
+
     public static String encryptSha1(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            // Only the first text.length() bytes have ever been hashed, keep it that way for existing records
+            return encryptSha1(data, text.length());
+        } finally {
+            wipe(data);
+        }
+    }
+
+    public static String encryptSha1(byte[] data, int length) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(text.getBytes(StandardCharsets.UTF_8), 0, text.length());
+            md.update(data, 0, length);
 
             return convertToHex(md.digest());
         } catch (Exception e) {
@@ -37,4 +53,132 @@ public class CryptoUtils {
 
         return buf.toString();
     }
+
+    /**
+     * Compare an unsalted legacy SHA-1 hex record against data, using digest (at least 20
+     * bytes) as scratch space instead of building an intermediate hex String.
+     */
+    public static boolean matchesSha1(byte[] data, int length, String hexRecord, byte[] digest) {
+        if (hexRecord == null || hexRecord.length() != SHA1_LENGTH * 2 || digest.length < SHA1_LENGTH)
+            return false;
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(data, 0, length);
+            md.digest(digest, 0, SHA1_LENGTH);
+
+            int difference = 0;
+
+            for (int i = 0; i < SHA1_LENGTH; i++) {
+                int expected = Character.digit(hexRecord.charAt(i * 2), 16) << 4
+                        | Character.digit(hexRecord.charAt(i * 2 + 1), 16);
+
+                difference |= (expected ^ digest[i]) & 0xff;
+            }
+
+            return difference == 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return false;
+        } finally {
+            wipe(digest);
+        }
+    }
+
+    /**
+     * @return the number of bytes needed to UTF-8 encode any length chars
+     */
+    public static int maxEncodedLength(int length) {
+        return length * 3;
+    }
+
+    /**
+     * UTF-8 encode the first length chars into out without any intermediate String or ByteBuffer.
+     * out must hold at least maxEncodedLength(length) bytes.
+     *
+     * @return the number of bytes written
+     */
+    public static int encodeUtf8(char[] chars, int length, byte[] out) {
+        int position = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xc0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                int codePoint = Character.toCodePoint(c, chars[++i]);
+
+                out[position++] = (byte) (0xf0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[position++] = (byte) '?';
+            } else {
+                out[position++] = (byte) (0xe0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return position;
+    }
+
+    public static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * @return true if both arrays are equal, taking the same time regardless of where they differ
+     */
+    public static boolean constantTimeEquals(byte[] a, byte[] b) {
+        if (a == null || b == null || a.length != b.length)
+            return false;
+
+        int difference = 0;
+
+        for (int i = 0; i < a.length; i++)
+            difference |= a[i] ^ b[i];
+
+        return difference == 0;
+    }
+
+    /**
+     * @return true if the first aLength chars of a equal the first bLength chars of b, taking
+     * the same time regardless of where they differ
+     */
+    public static boolean constantTimeEquals(char[] a, int aLength, char[] b, int bLength) {
+        if (a == null || b == null || aLength != bLength)
+            return false;
+
+        int difference = 0;
+
+        for (int i = 0; i < aLength; i++)
+            difference |= a[i] ^ b[i];
+
+        return difference == 0;
+    }
+
+    public static void wipe(byte[] data) {
+        if (data != null)
+            Arrays.fill(data, (byte) 0);
+    }
+
+    public static void wipe(char[] data) {
+        if (data != null)
+            Arrays.fill(data, '\0');
+    }
+
+    public static void wipe(int[] data) {
+        if (data != null)
+            Arrays.fill(data, 0);
+    }
 }
@@ -0,0 +1,119 @@
+package com.bitcoin.applock.utils;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+/**
+ * Tracks whether any Activity of the process is started, so AppLock only has to act when the
+ * app as a whole moves between the background and the foreground, and not on every navigation
+ * between its own Activities. All callbacks happen on the main thread.
+ */
+public class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+
+    public static final long BACKGROUND_DURATION_UNKNOWN = -1;
+
+    protected final Delegate delegate;
+
+    protected int startedCount = 0;
+    protected boolean changingConfigurations = false;
+    protected long backgroundedAtElapsedMs = BACKGROUND_DURATION_UNKNOWN;
+
+    protected ForegroundTracker(Delegate delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Register a single tracker with the Application. If context is an Activity it's
+     * assumed to have been started before the tracker could see it.
+     */
+    public static ForegroundTracker register(Context context, Delegate delegate) {
+        ForegroundTracker tracker = new ForegroundTracker(delegate);
+
+        if (context instanceof Activity)
+            tracker.startedCount = 1;
+
+        ((Application) context.getApplicationContext())
+                .registerActivityLifecycleCallbacks(tracker);
+
+        return tracker;
+    }
+
+    public boolean isInForeground() {
+        return 0 < startedCount;
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        if (startedCount++ != 0)
+            return;
+
+        if (changingConfigurations) {
+            this.changingConfigurations = false;
+
+            return;
+        }
+
+        long backgroundDurationMs = backgroundedAtElapsedMs == BACKGROUND_DURATION_UNKNOWN
+                ? BACKGROUND_DURATION_UNKNOWN
+                : SystemClock.elapsedRealtime() - backgroundedAtElapsedMs;
+
+        delegate.onForeground(backgroundDurationMs);
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        // Activities started before registration are stopped without ever being counted
+        if (0 < startedCount)
+            startedCount--;
+
+        if (startedCount != 0)
+            return;
+
+        // A recreated Activity is about to start again, so the app never really left
+        if (activity.isChangingConfigurations()) {
+            this.changingConfigurations = true;
+
+            return;
+        }
+
+        this.backgroundedAtElapsedMs = SystemClock.elapsedRealtime();
+
+        delegate.onBackground();
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle bundle) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+        delegate.onForegroundActivityResumed(activity);
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle bundle) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+
+    public interface Delegate {
+        void onBackground();
+
+        /**
+         * @param backgroundDurationMs how long the app was in the background, measured with
+         * SystemClock.elapsedRealtime(), or BACKGROUND_DURATION_UNKNOWN on the first foregrounding
+         */
+        void onForeground(long backgroundDurationMs);
+
+        void onForegroundActivityResumed(Activity activity);
+    }
+}
@@ -0,0 +1,215 @@
+package com.bitcoin.applock.utils;
+
+import java.util.Arrays;
+
+/**
+ * HMAC-SHA256 over caller-owned buffers. javax.crypto.Mac can only be keyed through a
+ * SecretKeySpec, which keeps its own copy of the key that can never be wiped, and here the
+ * key is the PIN itself. This keeps the keyed inner and outer states in its own arrays instead,
+ * so wipe() leaves nothing derived from the key behind. It also never allocates per MAC,
+ * which matters for the millions of MACs a calibrated PBKDF2 runs.
+ */
+final class HmacSha256 {
+
+    static final int MAC_LENGTH = 32;
+
+    private static final int BLOCK_LENGTH = 64;
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    // The states after absorbing the key XORed with ipad and opad, which is all HMAC needs of the key
+    private final int[] innerState = new int[8];
+    private final int[] outerState = new int[8];
+
+    private final int[] state = new int[8];
+    private final int[] schedule = new int[64];
+    private final byte[] block = new byte[BLOCK_LENGTH];
+    private final byte[] innerDigest = new byte[MAC_LENGTH];
+    private int blockLength;
+    private long length;
+
+    /**
+     * Key the MAC with the first keyLength bytes of key, which the caller remains free to wipe.
+     */
+    HmacSha256(byte[] key, int keyLength) {
+        byte[] pad = new byte[BLOCK_LENGTH];
+
+        try {
+            if (BLOCK_LENGTH < keyLength) {
+                start(INITIAL_STATE, 0);
+                update(key, 0, keyLength);
+                finish(pad, 0);
+            } else {
+                System.arraycopy(key, 0, pad, 0, keyLength);
+            }
+
+            for (int i = 0; i < BLOCK_LENGTH; i++)
+                pad[i] ^= 0x36;
+
+            System.arraycopy(INITIAL_STATE, 0, innerState, 0, 8);
+            compress(innerState, pad, 0);
+
+            for (int i = 0; i < BLOCK_LENGTH; i++)
+                pad[i] ^= 0x36 ^ 0x5c;
+
+            System.arraycopy(INITIAL_STATE, 0, outerState, 0, 8);
+            compress(outerState, pad, 0);
+        } finally {
+            CryptoUtils.wipe(pad);
+        }
+
+        start(innerState, BLOCK_LENGTH);
+    }
+
+    void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    void update(byte[] data, int offset, int count) {
+        length += count;
+
+        while (0 < count) {
+            if (blockLength == 0 && BLOCK_LENGTH <= count) {
+                compress(state, data, offset);
+
+                offset += BLOCK_LENGTH;
+                count -= BLOCK_LENGTH;
+
+                continue;
+            }
+
+            int copied = Math.min(count, BLOCK_LENGTH - blockLength);
+
+            System.arraycopy(data, offset, block, blockLength, copied);
+
+            blockLength += copied;
+            offset += copied;
+            count -= copied;
+
+            if (blockLength == BLOCK_LENGTH) {
+                compress(state, block, 0);
+                blockLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Write the MAC of everything passed to update() since the last doFinal() to out at offset,
+     * and start over for the next message with the same key.
+     */
+    void doFinal(byte[] out, int offset) {
+        finish(innerDigest, 0);
+
+        start(outerState, BLOCK_LENGTH);
+        update(innerDigest, 0, MAC_LENGTH);
+        finish(out, offset);
+
+        start(innerState, BLOCK_LENGTH);
+    }
+
+    /**
+     * Clear the keyed states and every intermediate value. The MAC can't be used afterwards.
+     */
+    void wipe() {
+        CryptoUtils.wipe(innerState);
+        CryptoUtils.wipe(outerState);
+        CryptoUtils.wipe(state);
+        CryptoUtils.wipe(schedule);
+
+        CryptoUtils.wipe(block);
+        CryptoUtils.wipe(innerDigest);
+    }
+
+    private void start(int[] initial, long absorbed) {
+        System.arraycopy(initial, 0, state, 0, 8);
+
+        this.blockLength = 0;
+        this.length = absorbed;
+    }
+
+    private void finish(byte[] out, int offset) {
+        long bitLength = length * 8;
+
+        block[blockLength++] = (byte) 0x80;
+
+        if (BLOCK_LENGTH - 8 < blockLength) {
+            Arrays.fill(block, blockLength, BLOCK_LENGTH, (byte) 0);
+            compress(state, block, 0);
+            blockLength = 0;
+        }
+
+        Arrays.fill(block, blockLength, BLOCK_LENGTH - 8, (byte) 0);
+
+        for (int i = 0; i < 8; i++)
+            block[BLOCK_LENGTH - 1 - i] = (byte) (bitLength >>> (8 * i));
+
+        compress(state, block, 0);
+
+        for (int i = 0; i < 8; i++) {
+            out[offset + 4 * i] = (byte) (state[i] >>> 24);
+            out[offset + 4 * i + 1] = (byte) (state[i] >>> 16);
+            out[offset + 4 * i + 2] = (byte) (state[i] >>> 8);
+            out[offset + 4 * i + 3] = (byte) state[i];
+        }
+    }
+
+    private void compress(int[] h, byte[] data, int offset) {
+        int[] w = schedule;
+
+        for (int i = 0; i < 16; i++, offset += 4)
+            w[i] = (data[offset] << 24)
+                    | ((data[offset + 1] & 0xff) << 16)
+                    | ((data[offset + 2] & 0xff) << 8)
+                    | (data[offset + 3] & 0xff);
+
+        for (int i = 16; i < 64; i++) {
+            int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+
+        for (int i = 0; i < 64; i++) {
+            int t1 = hh
+                    + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                    + ((e & f) ^ (~e & g))
+                    + K[i]
+                    + w[i];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                    + ((a & b) ^ (a & c) ^ (b & c));
+
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
+    }
+}
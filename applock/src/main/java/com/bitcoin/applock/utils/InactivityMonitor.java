@@ -0,0 +1,99 @@
+package com.bitcoin.applock.utils;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Window;
+
+/**
+ * An idle timer for the whole app. Input events only write a volatile timestamp, and a single
+ * deadline message checks it when it fires, re-posting itself for the remaining time if there
+ * was any interaction in the meantime. So touches never post, remove, or allocate messages.
+ */
+public class InactivityMonitor implements Runnable {
+
+    protected final Handler handler = new Handler(Looper.getMainLooper());
+    protected final long timeoutMs;
+    protected final Delegate delegate;
+
+    protected volatile long lastInteractionElapsedMs = SystemClock.elapsedRealtime();
+    protected boolean scheduled = false;
+
+    /**
+     * @param timeoutMs the idle period after which the delegate is notified, or 0 to disable monitoring
+     */
+    public InactivityMonitor(long timeoutMs, Delegate delegate) {
+        this.timeoutMs = timeoutMs;
+        this.delegate = delegate;
+    }
+
+    public boolean isEnabled() {
+        return 0 < timeoutMs;
+    }
+
+    public void onUserInteraction() {
+        this.lastInteractionElapsedMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Start watching the input of activity's Window, and start the deadline if it isn't running.
+     */
+    public void attach(Activity activity) {
+        if (!isEnabled())
+            return;
+
+        Window window = activity.getWindow();
+        Window.Callback callback = window.getCallback();
+
+        if (callback != null && !(callback instanceof InteractionWindowCallback))
+            window.setCallback(new InteractionWindowCallback(callback, this));
+
+        start();
+    }
+
+    public void start() {
+        if (!isEnabled() || scheduled)
+            return;
+
+        this.scheduled = true;
+
+        handler.postDelayed(this, Math.max(0, getRemainingMs()));
+    }
+
+    public void stop() {
+        this.scheduled = false;
+
+        handler.removeCallbacks(this);
+    }
+
+    /**
+     * @return the time left before the idle period expires, which is negative once it has
+     */
+    public long getRemainingMs() {
+        return lastInteractionElapsedMs + timeoutMs - SystemClock.elapsedRealtime();
+    }
+
+    public boolean isIdleExpired() {
+        return isEnabled() && getRemainingMs() <= 0;
+    }
+
+    @Override
+    public void run() {
+        long remainingMs = getRemainingMs();
+
+        if (0 < remainingMs) {
+            handler.postDelayed(this, remainingMs);
+
+            return;
+        }
+
+        this.scheduled = false;
+
+        delegate.onInactivityTimeout();
+    }
+
+    public interface Delegate {
+        void onInactivityTimeout();
+    }
+}
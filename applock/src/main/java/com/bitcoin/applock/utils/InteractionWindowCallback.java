@@ -0,0 +1,171 @@
+package com.bitcoin.applock.utils;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.view.ActionMode;
+import android.view.KeyEvent;
+import android.view.KeyboardShortcutGroup;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.SearchEvent;
+import android.view.View;
+import android.view.Window;
+import android.view.WindowManager;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.List;
+
+/**
+ * Forwards everything to the Window's original callback, noting every input event
+ * with the InactivityMonitor on the way through.
+ */
+public class InteractionWindowCallback implements Window.Callback {
+
+    protected final Window.Callback wrapped;
+    protected final InactivityMonitor monitor;
+
+    public InteractionWindowCallback(Window.Callback wrapped, InactivityMonitor monitor) {
+        this.wrapped = wrapped;
+        this.monitor = monitor;
+    }
+
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        monitor.onUserInteraction();
+
+        return wrapped.dispatchKeyEvent(event);
+    }
+
+    @Override
+    public boolean dispatchKeyShortcutEvent(KeyEvent event) {
+        monitor.onUserInteraction();
+
+        return wrapped.dispatchKeyShortcutEvent(event);
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        monitor.onUserInteraction();
+
+        return wrapped.dispatchTouchEvent(event);
+    }
+
+    @Override
+    public boolean dispatchTrackballEvent(MotionEvent event) {
+        monitor.onUserInteraction();
+
+        return wrapped.dispatchTrackballEvent(event);
+    }
+
+    @Override
+    public boolean dispatchGenericMotionEvent(MotionEvent event) {
+        monitor.onUserInteraction();
+
+        return wrapped.dispatchGenericMotionEvent(event);
+    }
+
+    @Override
+    public boolean dispatchPopulateAccessibilityEvent(AccessibilityEvent event) {
+        return wrapped.dispatchPopulateAccessibilityEvent(event);
+    }
+
+    @Override
+    public View onCreatePanelView(int featureId) {
+        return wrapped.onCreatePanelView(featureId);
+    }
+
+    @Override
+    public boolean onCreatePanelMenu(int featureId, Menu menu) {
+        return wrapped.onCreatePanelMenu(featureId, menu);
+    }
+
+    @Override
+    public boolean onPreparePanel(int featureId, View view, Menu menu) {
+        return wrapped.onPreparePanel(featureId, view, menu);
+    }
+
+    @Override
+    public boolean onMenuOpened(int featureId, Menu menu) {
+        return wrapped.onMenuOpened(featureId, menu);
+    }
+
+    @Override
+    public boolean onMenuItemSelected(int featureId, MenuItem item) {
+        return wrapped.onMenuItemSelected(featureId, item);
+    }
+
+    @Override
+    public void onWindowAttributesChanged(WindowManager.LayoutParams attrs) {
+        wrapped.onWindowAttributesChanged(attrs);
+    }
+
+    @Override
+    public void onContentChanged() {
+        wrapped.onContentChanged();
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        wrapped.onWindowFocusChanged(hasFocus);
+    }
+
+    @Override
+    public void onAttachedToWindow() {
+        wrapped.onAttachedToWindow();
+    }
+
+    @Override
+    public void onDetachedFromWindow() {
+        wrapped.onDetachedFromWindow();
+    }
+
+    @Override
+    public void onPanelClosed(int featureId, Menu menu) {
+        wrapped.onPanelClosed(featureId, menu);
+    }
+
+    @Override
+    public boolean onSearchRequested() {
+        return wrapped.onSearchRequested();
+    }
+
+    @Override
+    public boolean onSearchRequested(SearchEvent searchEvent) {
+        return wrapped.onSearchRequested(searchEvent);
+    }
+
+    @Override
+    public ActionMode onWindowStartingActionMode(ActionMode.Callback callback) {
+        return wrapped.onWindowStartingActionMode(callback);
+    }
+
+    @Override
+    public ActionMode onWindowStartingActionMode(ActionMode.Callback callback, int type) {
+        return wrapped.onWindowStartingActionMode(callback, type);
+    }
+
+    @Override
+    public void onActionModeStarted(ActionMode mode) {
+        wrapped.onActionModeStarted(mode);
+    }
+
+    @Override
+    public void onActionModeFinished(ActionMode mode) {
+        wrapped.onActionModeFinished(mode);
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void onProvideKeyboardShortcuts(List<KeyboardShortcutGroup> data, Menu menu, int deviceId) {
+        if (Build.VERSION_CODES.N <= Build.VERSION.SDK_INT)
+            wrapped.onProvideKeyboardShortcuts(data, menu, deviceId);
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void onPointerCaptureChanged(boolean hasCapture) {
+        if (Build.VERSION_CODES.O <= Build.VERSION.SDK_INT)
+            wrapped.onPointerCaptureChanged(hasCapture);
+    }
+}
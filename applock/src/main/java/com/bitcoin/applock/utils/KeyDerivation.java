@@ -0,0 +1,263 @@
+package com.bitcoin.applock.utils;
+
+import android.os.SystemClock;
+import android.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * A tunable password-based key derivation function. Derived secrets are stored in a
+ * self-describing record so the algorithm and its cost can change without breaking
+ * existing enrollments:
+ * <pre>$algorithm$parameters$salt$hash</pre>
+ */
+public abstract class KeyDerivation {
+
+    public static final int SALT_LENGTH = 16;
+    public static final int HASH_LENGTH = 32;
+
+    private static final String SEPARATOR = "$";
+    private static final int CALIBRATION_MAX_ROUNDS = 16;
+
+    /**
+     * @return the identifier written into the record, e.g. pbkdf2-sha256
+     */
+    public abstract String getAlgorithm();
+
+    /**
+     * @return the single work factor this derivation is tuned by
+     */
+    public abstract int getCost();
+
+    public abstract int getMaximumCost();
+
+    public abstract KeyDerivation withCost(int cost);
+
+    /**
+     * @return the next cost to try when calibrating, given the time the current cost took
+     */
+    protected abstract int scaleCost(long elapsedMs, long targetMs);
+
+    protected abstract String encodeParameters();
+
+    /**
+     * Derive HASH_LENGTH bytes from the first secretLength bytes of secret into out.
+     */
+    public abstract void derive(byte[] secret, int secretLength, byte[] salt, byte[] out) throws GeneralSecurityException;
+
+    /**
+     * Create whatever derive() needs that only enrollment may create, e.g. a keystore key.
+     * Verifications never call this, so they fail instead of deriving with something new.
+     */
+    protected void prepare() throws GeneralSecurityException {
+    }
+
+    /**
+     * @return the derivation benchmark() times in place of this one, which must not create or
+     * touch anything real verifications depend on
+     */
+    protected KeyDerivation forBenchmark() {
+        return this;
+    }
+
+    /**
+     * Delete whatever forBenchmark()'s derivation created for benchmark().
+     */
+    protected void discardBenchmark() {
+    }
+
+    /**
+     * @return the record header describing this derivation, without a salt or hash
+     */
+    public String encodeHeader() {
+        return SEPARATOR + getAlgorithm() + SEPARATOR + encodeParameters();
+    }
+
+    /**
+     * @return a new record for secret, using a freshly generated random salt
+     */
+    public String createRecord(byte[] secret, int secretLength) throws GeneralSecurityException {
+        byte[] salt = CryptoUtils.randomBytes(SALT_LENGTH);
+        byte[] hash = new byte[HASH_LENGTH];
+
+        prepare();
+        derive(secret, secretLength, salt, hash);
+
+        String record = encodeHeader()
+                + SEPARATOR + Base64.encodeToString(salt, Base64.NO_WRAP)
+                + SEPARATOR + Base64.encodeToString(hash, Base64.NO_WRAP);
+
+        CryptoUtils.wipe(hash);
+
+        return record;
+    }
+
+    /**
+     * @return true if secret derives to the hash stored in record. The comparison is constant-time.
+     */
+    public static boolean matches(byte[] secret, int secretLength, String record) throws GeneralSecurityException {
+        return matches(secret, secretLength, record, new byte[HASH_LENGTH]);
+    }
+
+    /**
+     * Same as matches(byte[], int, String), but derives into the caller's digest buffer
+     * (at least HASH_LENGTH bytes), which is wiped before returning.
+     */
+    public static boolean matches(byte[] secret, int secretLength, String record, byte[] digest) throws GeneralSecurityException {
+        KeyDerivation derivation = fromRecord(record);
+
+        if (derivation == null)
+            return false;
+
+        String[] parts = record.split("\\" + SEPARATOR);
+
+        if (parts.length != 5)
+            return false;
+
+        byte[] salt = Base64.decode(parts[3], Base64.NO_WRAP);
+        byte[] expected = Base64.decode(parts[4], Base64.NO_WRAP);
+
+        if (expected.length != HASH_LENGTH)
+            return false;
+
+        try {
+            derivation.derive(secret, secretLength, salt, digest);
+
+            int difference = 0;
+
+            for (int i = 0; i < HASH_LENGTH; i++)
+                difference |= expected[i] ^ digest[i];
+
+            return difference == 0;
+        } finally {
+            CryptoUtils.wipe(digest);
+        }
+    }
+
+    /**
+     * @return true if value is a KeyDerivation record or header, as opposed to a legacy format
+     */
+    public static boolean isRecord(String value) {
+        return value != null && value.startsWith(SEPARATOR);
+    }
+
+    /**
+     * Parse the algorithm and parameters from a record or a header.
+     *
+     * @return the matching KeyDerivation, or null if the record is not in a known format
+     */
+    public static KeyDerivation fromRecord(String record) {
+        if (!isRecord(record))
+            return null;
+
+        String[] parts = record.split("\\" + SEPARATOR);
+
+        if (parts.length < 3)
+            return null;
+
+        try {
+            if (Pbkdf2KeyDerivation.ALGORITHM.equals(parts[1]))
+                return Pbkdf2KeyDerivation.decodeParameters(parts[2]);
+
+            if (ScryptKeyDerivation.ALGORITHM.equals(parts[1]))
+                return ScryptKeyDerivation.decodeParameters(parts[2]);
+
+            if (KeystoreHmacKeyDerivation.ALGORITHM.equals(parts[1]))
+                return KeystoreHmacKeyDerivation.decodeParameters(parts[2]);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a KeyDerivation for the named algorithm at its minimum cost, or null if it's unknown
+     */
+    public static KeyDerivation forAlgorithm(String algorithm) {
+        if (ScryptKeyDerivation.ALGORITHM.equals(algorithm))
+            return new ScryptKeyDerivation(ScryptKeyDerivation.MINIMUM_N);
+
+        if (Pbkdf2KeyDerivation.ALGORITHM.equals(algorithm))
+            return new Pbkdf2KeyDerivation(Pbkdf2KeyDerivation.MINIMUM_ITERATIONS);
+
+        if (KeystoreHmacKeyDerivation.ALGORITHM.equals(algorithm))
+            return new KeystoreHmacKeyDerivation();
+
+        return null;
+    }
+
+    /**
+     * Time the derivation on this device and raise its cost until a single derivation takes
+     * at least targetMs, or the maximum cost is reached. This blocks for roughly twice the
+     * target, so call it off the main thread.
+     */
+    public static KeyDerivation calibrate(KeyDerivation derivation, long targetMs) throws GeneralSecurityException {
+        byte[] secret = CryptoUtils.randomBytes(8);
+        byte[] salt = CryptoUtils.randomBytes(SALT_LENGTH);
+        byte[] out = new byte[HASH_LENGTH];
+
+        derivation.prepare();
+
+        KeyDerivation candidate = derivation;
+        long elapsed = time(candidate, secret, salt, out);
+
+        for (int round = 0; elapsed < targetMs && candidate.getCost() < candidate.getMaximumCost() && round < CALIBRATION_MAX_ROUNDS; round++) {
+            candidate = candidate.withCost(Math.min(candidate.getMaximumCost(), candidate.scaleCost(elapsed, targetMs)));
+            elapsed = time(candidate, secret, salt, out);
+        }
+
+        return candidate;
+    }
+
+    /**
+     * Time rounds verifications with derivation on this device, e.g. to compare the keystore
+     * HMAC against the calibrated software KDF before choosing a deployment's algorithm. Keystore
+     * derivations are timed with a throwaway key of the same kind. Like
+     * calibrate(KeyDerivation, long), this blocks, so call it off the main thread.
+     *
+     * @return the elapsed milliseconds of each round, sorted ascending
+     */
+    public static long[] benchmark(KeyDerivation derivation, int rounds) throws GeneralSecurityException {
+        KeyDerivation measured = derivation.forBenchmark();
+        byte[] secret = CryptoUtils.randomBytes(8);
+        byte[] salt = CryptoUtils.randomBytes(SALT_LENGTH);
+        byte[] out = new byte[HASH_LENGTH];
+        long[] timings = new long[rounds];
+
+        try {
+            measured.prepare();
+
+            // The first round pays for class loading and key lookups, which no real unlock repeats
+            time(measured, secret, salt, out);
+
+            for (int i = 0; i < rounds; i++)
+                timings[i] = time(measured, secret, salt, out);
+        } finally {
+            measured.discardBenchmark();
+
+            CryptoUtils.wipe(out);
+        }
+
+        Arrays.sort(timings);
+
+        return timings;
+    }
+
+    /**
+     * Let long running derivations stop early when the thread running them is interrupted.
+     */
+    protected static void throwIfInterrupted() throws GeneralSecurityException {
+        if (Thread.currentThread().isInterrupted())
+            throw new GeneralSecurityException("Key derivation interrupted");
+    }
+
+    private static long time(KeyDerivation derivation, byte[] secret, byte[] salt, byte[] out) throws GeneralSecurityException {
+        long start = SystemClock.elapsedRealtime();
+
+        derivation.derive(secret, secret.length, salt, out);
+
+        return SystemClock.elapsedRealtime() - start;
+    }
+}
@@ -0,0 +1,118 @@
+package com.bitcoin.applock.utils;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bitcoin.applock.SecretVault;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks AppLock's keystore keys on the probe executor, regenerating any that were invalidated
+ * (e.g. by a newly enrolled fingerprint) or lost, so this is found out before the user's next
+ * unlock attempt rather than by it. Keys that stored data depends on, like the PIN HMAC key and
+ * the SecretVault key, are only reported as lost, never regenerated. Results are delivered on the main thread.
+ */
+public class KeyHealthChecker implements Runnable {
+
+    public enum Status {
+        HEALTHY,
+        // Didn't exist, and has been created
+        MISSING,
+        // Permanently invalidated by a change to the device's lock screen or biometrics, and replaced
+        INVALIDATED,
+        // Didn't exist, and can't be recreated without losing whatever was made with it
+        LOST
+    }
+
+    protected final Context context;
+    protected final Delegate delegate;
+    protected final Handler mainHandler = new Handler(Looper.getMainLooper());
+    protected final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    public KeyHealthChecker(Context context, Delegate delegate) {
+        this.context = context.getApplicationContext();
+        this.delegate = delegate;
+    }
+
+    /**
+     * Run a check in the background, unless one is already waiting to run.
+     */
+    public void schedule() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || !scheduled.compareAndSet(false, true))
+            return;
+
+        try {
+            AppLockExecutors.getProbeExecutor()
+                    .execute(this);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+
+            scheduled.set(false);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void run() {
+        scheduled.set(false);
+
+        final Status authKey = delegate.isAuthKeyInUse()
+                ? CipherGenerator.checkAuthKey(context)
+                : Status.HEALTHY;
+
+        SessionKey sessionKey = delegate.getSessionKeyInUse();
+
+        final Status sessionKeyStatus = sessionKey == null
+                ? Status.HEALTHY
+                : sessionKey.checkHealth();
+
+        final Status pinKey = delegate.isPINKeyInUse()
+                ? KeystoreHmacKeyDerivation.checkKey()
+                : Status.HEALTHY;
+
+        final Status vaultKey = delegate.isVaultKeyInUse()
+                ? SecretVault.checkKey()
+                : Status.HEALTHY;
+
+        if (authKey == Status.HEALTHY && sessionKeyStatus == Status.HEALTHY && pinKey == Status.HEALTHY && vaultKey == Status.HEALTHY)
+            return;
+
+        mainHandler.post(new Runnable() {
+            public void run() {
+                delegate.onKeyHealthChecked(authKey, sessionKeyStatus, pinKey, vaultKey);
+            }
+        });
+    }
+
+    public interface Delegate {
+        /**
+         * @return true if the fingerprint auth key needs to be kept usable. Called on the probe thread.
+         */
+        boolean isAuthKeyInUse();
+
+        /**
+         * @return the SessionKey if one has been created, or null. Called on the probe thread.
+         */
+        SessionKey getSessionKeyInUse();
+
+        /**
+         * @return true if the enrolled PIN is verified with the keystore HMAC key. Called on the probe thread.
+         */
+        boolean isPINKeyInUse();
+
+        /**
+         * @return true if the SecretVault holds secrets encrypted with its key. Called on the probe thread.
+         */
+        boolean isVaultKeyInUse();
+
+        /**
+         * Called on the main thread, only when at least one key wasn't healthy.
+         */
+        void onKeyHealthChecked(Status authKey, Status sessionKey, Status pinKey, Status vaultKey);
+    }
+}
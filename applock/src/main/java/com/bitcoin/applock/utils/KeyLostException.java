@@ -0,0 +1,15 @@
+package com.bitcoin.applock.utils;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Thrown when a keystore key that existing data was created with no longer exists, e.g. after
+ * the app's keystore entries were cleared. Unlike a failed verification, retrying can never
+ * succeed: whatever the key protected has to be created again.
+ */
+public class KeyLostException extends GeneralSecurityException {
+
+    public KeyLostException(String message) {
+        super(message);
+    }
+}
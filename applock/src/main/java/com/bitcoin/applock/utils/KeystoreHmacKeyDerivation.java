@@ -0,0 +1,188 @@
+package com.bitcoin.applock.utils;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.StrongBoxUnavailableException;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * HMAC-SHA256 of salt || secret, keyed with a non-exportable AndroidKeyStore key. Records can't
+ * be brute-forced offline, since every guess has to go through this device's keystore (StrongBox
+ * where available) at whatever rate it allows. It has no tunable cost, so a verification takes
+ * a keystore round trip instead of hundreds of milliseconds of CPU.
+ *
+ * The key never leaves the device, so records made with it only verify on the device they were
+ * created on, and are lost along with the key if the app's keystore entries are cleared. The key
+ * is only ever created by an enrollment; a verification without it throws KeyLostException.
+ */
+@SuppressLint("NewApi")
+public class KeystoreHmacKeyDerivation extends KeyDerivation {
+
+    public static final String ALGORITHM = "keystore-hmac-sha256";
+    public static final String KEY_ALIAS = "applock__pin_hmac_key";
+
+    // A key of its own, so benchmarking never creates the PIN key behind a lost one's back
+    private static final String BENCHMARK_KEY_ALIAS = "applock__pin_hmac_benchmark_key";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int VERSION = 1;
+
+    protected final String alias;
+
+    public KeystoreHmacKeyDerivation() {
+        this(KEY_ALIAS);
+    }
+
+    protected KeystoreHmacKeyDerivation(String alias) {
+        this.alias = alias;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public int getCost() {
+        return 1;
+    }
+
+    @Override
+    public int getMaximumCost() {
+        return 1;
+    }
+
+    @Override
+    public KeyDerivation withCost(int cost) {
+        return this;
+    }
+
+    @Override
+    protected int scaleCost(long elapsedMs, long targetMs) {
+        return 1;
+    }
+
+    @Override
+    protected String encodeParameters() {
+        return "v=" + VERSION;
+    }
+
+    static KeystoreHmacKeyDerivation decodeParameters(String parameters) {
+        if (!parameters.equals("v=" + VERSION))
+            throw new IllegalArgumentException("Unknown keystore HMAC parameters: " + parameters);
+
+        return new KeystoreHmacKeyDerivation();
+    }
+
+    @Override
+    public void derive(byte[] secret, int secretLength, byte[] salt, byte[] out) throws GeneralSecurityException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            throw new GeneralSecurityException("The keystore HMAC isn't supported before Api 23");
+
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(loadKey(alias));
+        mac.update(salt);
+        mac.update(secret, 0, secretLength);
+        mac.doFinal(out, 0);
+    }
+
+    @Override
+    protected void prepare() throws GeneralSecurityException {
+        synchronized (KeystoreHmacKeyDerivation.class) {
+            if (!getKeyStore().containsAlias(alias))
+                generateKey(alias);
+        }
+    }
+
+    @Override
+    protected KeyDerivation forBenchmark() {
+        return new KeystoreHmacKeyDerivation(BENCHMARK_KEY_ALIAS);
+    }
+
+    @Override
+    protected void discardBenchmark() {
+        if (KEY_ALIAS.equals(alias))
+            return;
+
+        try {
+            getKeyStore().deleteEntry(alias);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Looked up on every derivation rather than cached, so a key that disappears is noticed
+     * by the next verification instead of being used from memory.
+     */
+    protected static SecretKey loadKey(String alias) throws GeneralSecurityException {
+        SecretKey key = (SecretKey) getKeyStore().getKey(alias, null);
+
+        if (key == null)
+            throw new KeyLostException("The PIN HMAC key is missing: " + alias);
+
+        return key;
+    }
+
+    /**
+     * Check that the key records are verified with still exists, without ever creating it.
+     * Blocks on the keystore, so call it off the main thread.
+     */
+    public static KeyHealthChecker.Status checkKey() {
+        try {
+            return getKeyStore().containsAlias(KEY_ALIAS)
+                    ? KeyHealthChecker.Status.HEALTHY
+                    : KeyHealthChecker.Status.LOST;
+        } catch (Exception e) {
+            // Can't tell, so don't report a loss the next verification wouldn't confirm
+            e.printStackTrace();
+
+            return KeyHealthChecker.Status.HEALTHY;
+        }
+    }
+
+    private static KeyStore getKeyStore() throws GeneralSecurityException {
+        try {
+            return CipherGenerator.getKeyStore();
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralSecurityException("Unable to load the PIN HMAC key", e);
+        }
+    }
+
+    private static SecretKey generateKey(String alias) throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_HMAC_SHA256, "AndroidKeyStore");
+
+        if (Build.VERSION_CODES.P <= Build.VERSION.SDK_INT) {
+            try {
+                keyGenerator.init(buildKeySpec(alias, true));
+
+                return keyGenerator.generateKey();
+            } catch (StrongBoxUnavailableException e) {
+                // Falls back to the TEE below
+            }
+        }
+
+        keyGenerator.init(buildKeySpec(alias, false));
+
+        return keyGenerator.generateKey();
+    }
+
+    private static KeyGenParameterSpec buildKeySpec(String alias, boolean strongBoxBacked) {
+        KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_SIGN);
+
+        if (strongBoxBacked)
+            builder.setIsStrongBoxBacked(true);
+
+        return builder.build();
+    }
+}
@@ -5,26 +5,88 @@ import android.app.Application;
 import android.os.Bundle;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 public class LifeCycleUtils {
 
+    private static AppLockActivityLifeCycleCallbacks callbacks;
+
+    /**
+     * Route the resume and pause events of activity to delegate until activity is destroyed
+     * or detach is called. All delegates share a single Application registration.
+     */
     public static AppLockActivityLifeCycleCallbacks attach(Activity activity, AppLockActivityLifeCycleCallbacks.Delegate delegate) {
-        AppLockActivityLifeCycleCallbacks callbacks = new AppLockActivityLifeCycleCallbacks(activity, delegate);
+        AppLockActivityLifeCycleCallbacks callbacks = getCallbacks(activity.getApplication());
+        callbacks.attach(activity, delegate);
+
+        return callbacks;
+    }
+
+    public static void detach(Activity activity, AppLockActivityLifeCycleCallbacks.Delegate delegate) {
+        getCallbacks(activity.getApplication())
+                .detach(activity, delegate);
+    }
+
+    protected static synchronized AppLockActivityLifeCycleCallbacks getCallbacks(Application application) {
+        if (callbacks == null) {
+            callbacks = new AppLockActivityLifeCycleCallbacks();
 
-        activity.getApplication()
-                .registerActivityLifecycleCallbacks(callbacks);
+            application.registerActivityLifecycleCallbacks(callbacks);
+        }
 
         return callbacks;
     }
 
+    /**
+     * The single dispatcher for every attached Delegate, keyed by the identity of the Activity
+     * they're attached to. Only ever touched on the main thread.
+     */
     public static class AppLockActivityLifeCycleCallbacks implements Application.ActivityLifecycleCallbacks {
 
-        protected WeakReference<Activity> openedActivity;
-        protected WeakReference<Delegate> delegate;
+        protected final IdentityHashMap<Activity, ArrayList<WeakReference<Delegate>>> delegates = new IdentityHashMap<Activity, ArrayList<WeakReference<Delegate>>>();
+
+        protected AppLockActivityLifeCycleCallbacks() {
+        }
 
+        /**
+         * @deprecated use {@link LifeCycleUtils#attach(Activity, Delegate)}. This attaches delegate to the
+         * shared dispatcher; the instance itself dispatches nothing, so registering it is harmless
+         * and detaching requires {@link LifeCycleUtils#detach(Activity, Delegate)}.
+         */
+        @Deprecated
         public AppLockActivityLifeCycleCallbacks(Activity activity, Delegate delegate) {
-            this.openedActivity = new WeakReference<Activity>(activity);
-            this.delegate = new WeakReference<Delegate>(delegate);
+            getCallbacks(activity.getApplication())
+                    .attach(activity, delegate);
+        }
+
+        protected void attach(Activity activity, Delegate delegate) {
+            ArrayList<WeakReference<Delegate>> attached = delegates.get(activity);
+
+            if (attached == null) {
+                attached = new ArrayList<WeakReference<Delegate>>(1);
+
+                delegates.put(activity, attached);
+            }
+
+            attached.add(new WeakReference<Delegate>(delegate));
+        }
+
+        protected void detach(Activity activity, Delegate delegate) {
+            ArrayList<WeakReference<Delegate>> attached = delegates.get(activity);
+
+            if (attached == null)
+                return;
+
+            for (int i = attached.size() - 1; 0 <= i; i--) {
+                Delegate existing = attached.get(i).get();
+
+                if (existing == null || existing == delegate)
+                    attached.remove(i);
+            }
+
+            if (attached.isEmpty())
+                delegates.remove(activity);
         }
 
         @Override
@@ -45,35 +107,38 @@ public class LifeCycleUtils {
 
         @Override
         public void onActivityResumed(Activity activity) {
-            Activity opened = this.openedActivity.get();
-            Delegate delegate = this.delegate.get();
+            ArrayList<WeakReference<Delegate>> attached = delegates.get(activity);
 
-            if (opened == null || delegate == null || opened != activity)
+            if (attached == null)
                 return;
 
-            delegate.onActivityResumed();
+            // Indexed and in reverse, as a delegate may detach itself while being dispatched to
+            for (int i = attached.size() - 1; 0 <= i; i--) {
+                Delegate delegate = i < attached.size() ? attached.get(i).get() : null;
+
+                if (delegate != null)
+                    delegate.onActivityResumed();
+            }
         }
 
         @Override
         public void onActivityPaused(Activity activity) {
-            Activity opened = this.openedActivity.get();
-            Delegate delegate = this.delegate.get();
+            ArrayList<WeakReference<Delegate>> attached = delegates.get(activity);
 
-            if (opened == null || delegate == null || opened != activity)
+            if (attached == null)
                 return;
 
-            delegate.onActivityPaused();
+            for (int i = attached.size() - 1; 0 <= i; i--) {
+                Delegate delegate = i < attached.size() ? attached.get(i).get() : null;
+
+                if (delegate != null)
+                    delegate.onActivityPaused();
+            }
         }
 
         @Override
         public void onActivityDestroyed(Activity activity) {
-            Activity opened = this.openedActivity.get();
-
-            if (opened == null || opened != activity)
-                return;
-
-            opened.getApplication()
-                    .unregisterActivityLifecycleCallbacks(this);
+            delegates.remove(activity);
         }
 
         public interface Delegate {
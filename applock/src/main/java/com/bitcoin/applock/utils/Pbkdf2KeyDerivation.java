@@ -0,0 +1,118 @@
+package com.bitcoin.applock.utils;
+
+import java.security.GeneralSecurityException;
+
+
+/**
+ * PBKDF2-HMAC-SHA256, tuned by its iteration count.
+ */
+public class Pbkdf2KeyDerivation extends KeyDerivation {
+
+    public static final String ALGORITHM = "pbkdf2-sha256";
+    public static final int MINIMUM_ITERATIONS = 1000;
+    public static final int MAXIMUM_ITERATIONS = 10000000;
+
+    private static final int MAC_LENGTH = 32;
+    private static final int INTERRUPT_CHECK_MASK = 0x3ff;
+
+    private final int iterations;
+
+    public Pbkdf2KeyDerivation(int iterations) {
+        this.iterations = Math.max(MINIMUM_ITERATIONS, iterations);
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public int getCost() {
+        return iterations;
+    }
+
+    @Override
+    public int getMaximumCost() {
+        return MAXIMUM_ITERATIONS;
+    }
+
+    @Override
+    public KeyDerivation withCost(int cost) {
+        return new Pbkdf2KeyDerivation(cost);
+    }
+
+    @Override
+    protected int scaleCost(long elapsedMs, long targetMs) {
+        // Timings under a few milliseconds are mostly noise, so don't extrapolate from them
+        if (elapsedMs < 4)
+            return iterations * 8;
+
+        long scaled = iterations * targetMs / elapsedMs;
+
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(iterations + iterations / 4, scaled));
+    }
+
+    @Override
+    protected String encodeParameters() {
+        return "i=" + iterations;
+    }
+
+    static Pbkdf2KeyDerivation decodeParameters(String parameters) {
+        if (!parameters.startsWith("i="))
+            throw new IllegalArgumentException("Unknown PBKDF2 parameters: " + parameters);
+
+        return new Pbkdf2KeyDerivation(Integer.parseInt(parameters.substring(2)));
+    }
+
+    @Override
+    public void derive(byte[] secret, int secretLength, byte[] salt, byte[] out) throws GeneralSecurityException {
+        // Keyed over the caller's buffer, which it wipes; see HmacSha256 for why not javax.crypto.Mac
+        HmacSha256 mac = new HmacSha256(secret, secretLength);
+
+        try {
+            pbkdf2(mac, salt, iterations, out, HASH_LENGTH);
+        } finally {
+            mac.wipe();
+        }
+    }
+
+    /**
+     * Fill the first outLength bytes of out with PBKDF2 using an already keyed HMAC.
+     */
+    static void pbkdf2(HmacSha256 mac, byte[] salt, int iterations, byte[] out, int outLength) throws GeneralSecurityException {
+        byte[] u = new byte[MAC_LENGTH];
+        byte[] t = new byte[MAC_LENGTH];
+        byte[] blockIndex = new byte[4];
+
+        try {
+            for (int block = 1, offset = 0; offset < outLength; block++, offset += MAC_LENGTH) {
+                blockIndex[0] = (byte) (block >>> 24);
+                blockIndex[1] = (byte) (block >>> 16);
+                blockIndex[2] = (byte) (block >>> 8);
+                blockIndex[3] = (byte) block;
+
+                mac.update(salt);
+                mac.update(blockIndex);
+                mac.doFinal(u, 0);
+
+                System.arraycopy(u, 0, t, 0, MAC_LENGTH);
+
+                for (int i = 1; i < iterations; i++) {
+                    if ((i & INTERRUPT_CHECK_MASK) == 0)
+                        throwIfInterrupted();
+
+                    mac.update(u);
+                    mac.doFinal(u, 0);
+
+                    for (int j = 0; j < MAC_LENGTH; j++)
+                        t[j] ^= u[j];
+                }
+
+                System.arraycopy(t, 0, out, offset, Math.min(MAC_LENGTH, outLength - offset));
+            }
+        } finally {
+            CryptoUtils.wipe(u);
+            CryptoUtils.wipe(t);
+        }
+    }
+}
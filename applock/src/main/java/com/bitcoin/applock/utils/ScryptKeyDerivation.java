@@ -0,0 +1,237 @@
+package com.bitcoin.applock.utils;
+
+import java.security.GeneralSecurityException;
+
+
+/**
+ * scrypt (RFC 7914), a memory-hard derivation tuned by its CPU/memory cost N.
+ * Each derivation needs 128 * r * N bytes of working memory.
+ */
+public class ScryptKeyDerivation extends KeyDerivation {
+
+    public static final String ALGORITHM = "scrypt";
+    public static final int MINIMUM_N = 1 << 10;
+    // 16 MB of working memory at the default r, which every supported heap can spare
+    public static final int MAXIMUM_N = 1 << 14;
+    public static final long MAXIMUM_MEMORY_BYTES = 16L * 1024 * 1024;
+    public static final int DEFAULT_R = 8;
+    public static final int DEFAULT_P = 1;
+
+    private static final int INTERRUPT_CHECK_MASK = 0xff;
+
+    private final int n;
+    private final int r;
+    private final int p;
+
+    public ScryptKeyDerivation(int n) {
+        this(n, DEFAULT_R, DEFAULT_P);
+    }
+
+    public ScryptKeyDerivation(int n, int r, int p) {
+        if (n < 2 || (n & (n - 1)) != 0)
+            throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+
+        if (r < 1 || p < 1)
+            throw new IllegalArgumentException("r and p must be positive");
+
+        this.n = n;
+        this.r = r;
+        this.p = p;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
+
+    @Override
+    public int getCost() {
+        return n;
+    }
+
+    /**
+     * @return the largest N whose working memory fits both MAXIMUM_MEMORY_BYTES and an eighth of
+     * this process' heap, so calibration can never grow a derivation into an OutOfMemoryError
+     */
+    @Override
+    public int getMaximumCost() {
+        long budget = Math.min(MAXIMUM_MEMORY_BYTES, Runtime.getRuntime().maxMemory() / 8);
+        long affordable = Math.max(MINIMUM_N, budget / (128L * r));
+
+        return (int) Math.min(MAXIMUM_N, Long.highestOneBit(affordable));
+    }
+
+    @Override
+    public KeyDerivation withCost(int cost) {
+        int n = Math.min(getMaximumCost(), Math.max(2, cost));
+
+        return new ScryptKeyDerivation(Integer.highestOneBit(n), r, p);
+    }
+
+    @Override
+    protected int scaleCost(long elapsedMs, long targetMs) {
+        // Memory use grows with N, so only ever double it
+        return n * 2;
+    }
+
+    @Override
+    protected String encodeParameters() {
+        return "n=" + n + ",r=" + r + ",p=" + p;
+    }
+
+    static ScryptKeyDerivation decodeParameters(String parameters) {
+        int n = 0;
+        int r = DEFAULT_R;
+        int p = DEFAULT_P;
+
+        for (String parameter : parameters.split(",")) {
+            if (parameter.startsWith("n="))
+                n = Integer.parseInt(parameter.substring(2));
+            else if (parameter.startsWith("r="))
+                r = Integer.parseInt(parameter.substring(2));
+            else if (parameter.startsWith("p="))
+                p = Integer.parseInt(parameter.substring(2));
+            else
+                throw new IllegalArgumentException("Unknown scrypt parameter: " + parameter);
+        }
+
+        return new ScryptKeyDerivation(n, r, p);
+    }
+
+    @Override
+    public void derive(byte[] secret, int secretLength, byte[] salt, byte[] out) throws GeneralSecurityException {
+        int blockLength = 128 * r;
+        byte[] b = new byte[blockLength * p];
+        int[] x = new int[32 * r];
+        int[] y = new int[32 * r];
+        int[] t = new int[16];
+        int[] v = new int[32 * r * n];
+        HmacSha256 mac = new HmacSha256(secret, secretLength);
+
+        try {
+            Pbkdf2KeyDerivation.pbkdf2(mac, salt, 1, b, b.length);
+
+            for (int i = 0; i < p; i++)
+                smix(b, i * blockLength, x, y, t, v);
+
+            Pbkdf2KeyDerivation.pbkdf2(mac, b, 1, out, HASH_LENGTH);
+        } finally {
+            mac.wipe();
+            CryptoUtils.wipe(b);
+            CryptoUtils.wipe(x);
+            CryptoUtils.wipe(y);
+            CryptoUtils.wipe(t);
+            CryptoUtils.wipe(v);
+        }
+    }
+
+    private void smix(byte[] b, int offset, int[] x, int[] y, int[] t, int[] v) throws GeneralSecurityException {
+        int words = 32 * r;
+
+        for (int i = 0; i < words; i++) {
+            int index = offset + i * 4;
+
+            x[i] = (b[index] & 0xff)
+                    | (b[index + 1] & 0xff) << 8
+                    | (b[index + 2] & 0xff) << 16
+                    | (b[index + 3] & 0xff) << 24;
+        }
+
+        for (int i = 0; i < n; i++) {
+            if ((i & INTERRUPT_CHECK_MASK) == 0)
+                throwIfInterrupted();
+
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, y, t);
+        }
+
+        for (int i = 0; i < n; i++) {
+            if ((i & INTERRUPT_CHECK_MASK) == 0)
+                throwIfInterrupted();
+
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+
+            for (int k = 0; k < words; k++)
+                x[k] ^= v[j * words + k];
+
+            blockMix(x, y, t);
+        }
+
+        for (int i = 0; i < words; i++) {
+            int index = offset + i * 4;
+
+            b[index] = (byte) x[i];
+            b[index + 1] = (byte) (x[i] >>> 8);
+            b[index + 2] = (byte) (x[i] >>> 16);
+            b[index + 3] = (byte) (x[i] >>> 24);
+        }
+    }
+
+    /**
+     * BlockMix with Salsa20/8 on b in place, using y as scratch space of the same length
+     * and t as a single 16 word block.
+     */
+    private void blockMix(int[] b, int[] y, int[] t) {
+        System.arraycopy(b, (2 * r - 1) * 16, t, 0, 16);
+
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++)
+                t[k] ^= b[i * 16 + k];
+
+            salsa208(t);
+
+            // Even blocks go to the first half of the output, odd blocks to the second
+            System.arraycopy(t, 0, y, ((i & 1) * r + (i >> 1)) * 16, 16);
+        }
+
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa208(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3];
+        int x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11];
+        int x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3;
+        b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11;
+        b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+}
@@ -0,0 +1,251 @@
+package com.bitcoin.applock.utils;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
+
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * A keystore key that stays usable for a validity window after the user authenticates, so any
+ * number of operations can run against it without prompting again. The keystore enforces the
+ * window itself; this only tracks when it was opened so callers can batch their work into it,
+ * and refuses to run once the app has locked, even if the keystore would still allow it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class SessionKey {
+
+    public static final String KEY_ALIAS = "applock__session_key";
+
+    private static final String CIPHER_TRANSFORMATION = KeyProperties.KEY_ALGORITHM_AES
+            + "/" + KeyProperties.BLOCK_MODE_GCM
+            + "/" + KeyProperties.ENCRYPTION_PADDING_NONE;
+
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+
+    protected final String alias;
+    protected final int validitySeconds;
+
+    // 0 while the window isn't known to be open
+    protected volatile long openedAtElapsedMs = 0;
+
+    public SessionKey(String alias, int validitySeconds) {
+        this.alias = alias;
+        this.validitySeconds = validitySeconds;
+    }
+
+    public int getValiditySeconds() {
+        return validitySeconds;
+    }
+
+    /**
+     * @return the milliseconds left in the current validity window, or 0 if it's not open
+     */
+    public long getRemainingValidityMs() {
+        long openedAt = openedAtElapsedMs;
+
+        if (openedAt == 0)
+            return 0;
+
+        long remaining = openedAt + validitySeconds * 1000L - SystemClock.elapsedRealtime();
+
+        return Math.max(0, remaining);
+    }
+
+    public boolean isUnlocked() {
+        return 0 < getRemainingValidityMs();
+    }
+
+    /**
+     * Start tracking a validity window opened by an authentication that just succeeded. Weak
+     * biometrics don't unlock keystore keys, so the window is confirmed on the crypto executor
+     * and forgotten again if the key turns out to still require authentication.
+     */
+    public void onAuthenticated() {
+        final long openedAt = SystemClock.elapsedRealtime();
+
+        synchronized (this) {
+            this.openedAtElapsedMs = openedAt;
+        }
+
+        try {
+            AppLockExecutors.getCryptoExecutor()
+                    .execute(new Runnable() {
+                        public void run() {
+                            if (!probe())
+                                close(openedAt);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop using the key until the next authentication. Called when the app locks.
+     */
+    public synchronized void close() {
+        this.openedAtElapsedMs = 0;
+    }
+
+    private synchronized void close(long openedAt) {
+        if (openedAtElapsedMs == openedAt)
+            this.openedAtElapsedMs = 0;
+    }
+
+    /**
+     * @return the key itself, for operations this class doesn't cover, while the window is open
+     */
+    public SecretKey getSecretKey() throws Exception {
+        if (!isUnlocked())
+            throw new UserNotAuthenticatedException("The session key's validity window isn't open");
+
+        return (SecretKey) getKey();
+    }
+
+    /**
+     * @return the IV followed by the ciphertext and its tag
+     */
+    public byte[] encrypt(byte[] plaintext, byte[] associatedData) throws Exception {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+
+        runGuarded(cipher, Cipher.ENCRYPT_MODE, null);
+
+        if (associatedData != null)
+            cipher.updateAAD(associatedData);
+
+        byte[] iv = cipher.getIV();
+        byte[] ciphertext = cipher.doFinal(plaintext);
+
+        return ByteBuffer.allocate(iv.length + ciphertext.length)
+                .put(iv)
+                .put(ciphertext)
+                .array();
+    }
+
+    public byte[] decrypt(byte[] blob, byte[] associatedData) throws Exception {
+        if (blob.length < GCM_IV_LENGTH)
+            throw new RuntimeException("Session key blob is too short");
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+
+        runGuarded(cipher, Cipher.DECRYPT_MODE, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, blob, 0, GCM_IV_LENGTH));
+
+        if (associatedData != null)
+            cipher.updateAAD(associatedData);
+
+        return cipher.doFinal(blob, GCM_IV_LENGTH, blob.length - GCM_IV_LENGTH);
+    }
+
+    private void runGuarded(Cipher cipher, int mode, GCMParameterSpec spec) throws Exception {
+        if (!isUnlocked())
+            throw new UserNotAuthenticatedException("The session key's validity window isn't open");
+
+        try {
+            if (spec == null)
+                cipher.init(mode, getKey());
+            else
+                cipher.init(mode, getKey(), spec);
+        } catch (UserNotAuthenticatedException e) {
+            // The window closed earlier than tracked, e.g. it was opened before a process restart
+            close();
+
+            throw e;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            // A new biometric was enrolled, so replace the key. It needs a new authentication either way.
+            close();
+            ensureKey(true);
+
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the key can currently be used without authenticating
+     */
+    protected boolean probe() {
+        try {
+            Cipher.getInstance(CIPHER_TRANSFORMATION)
+                    .init(Cipher.ENCRYPT_MODE, getKey());
+
+            return true;
+        } catch (UserNotAuthenticatedException e) {
+            return false;
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return false;
+        }
+    }
+
+    /**
+     * Replace the key if it was permanently invalidated, e.g. by a newly enrolled biometric. A key
+     * that was never created is left alone. Meant for a background thread.
+     */
+    public KeyHealthChecker.Status checkHealth() {
+        try {
+            if (!CipherGenerator.getKeyStore().containsAlias(alias))
+                return KeyHealthChecker.Status.HEALTHY;
+
+            try {
+                Cipher.getInstance(CIPHER_TRANSFORMATION)
+                        .init(Cipher.ENCRYPT_MODE, getKey());
+            } catch (UserNotAuthenticatedException e) {
+                // Valid, just outside of its window
+            } catch (KeyPermanentlyInvalidatedException e) {
+                close();
+                ensureKey(true);
+
+                return KeyHealthChecker.Status.INVALIDATED;
+            }
+
+            return KeyHealthChecker.Status.HEALTHY;
+        } catch (Exception e) {
+            e.printStackTrace();
+
+            return KeyHealthChecker.Status.HEALTHY;
+        }
+    }
+
+    protected Key getKey() throws Exception {
+        ensureKey(false);
+
+        return CipherGenerator.getKeyStore().getKey(alias, null);
+    }
+
+    private synchronized void ensureKey(boolean forceRegenerate) throws Exception {
+        if (!forceRegenerate && CipherGenerator.getKeyStore().containsAlias(alias))
+            return;
+
+        KeyGenParameterSpec.Builder spec = new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .setUserAuthenticationRequired(true);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            spec.setUserAuthenticationParameters(validitySeconds, KeyProperties.AUTH_BIOMETRIC_STRONG | KeyProperties.AUTH_DEVICE_CREDENTIAL);
+        else
+            spec.setUserAuthenticationValidityDurationSeconds(validitySeconds);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            spec.setInvalidatedByBiometricEnrollment(true);
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+        keyGenerator.init(spec.build());
+        keyGenerator.generateKey();
+    }
+}
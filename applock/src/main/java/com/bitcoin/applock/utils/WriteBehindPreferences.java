@@ -0,0 +1,226 @@
+package com.bitcoin.applock.utils;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers preference mutations in memory and writes them to disk from a background Executor.
+ * Mutations made before a flush runs are merged into a single commit(). Reads always see
+ * the latest value, whether it is pending, being written, or already on disk. A batch whose
+ * commit() fails is put back in front of newer changes and retried with the next flush.
+ */
+public class WriteBehindPreferences {
+
+    private static final Object REMOVED = new Object();
+
+    protected final SharedPreferences preferences;
+    protected final Executor executor;
+
+    private final Object lock = new Object();
+    private HashMap<String, Object> pending = new HashMap<String, Object>();
+    private HashMap<String, Object> inFlight = new HashMap<String, Object>();
+    private boolean flushScheduled = false;
+    private long writeGeneration = 0;
+    private long persistedGeneration = 0;
+    private long failedGeneration = 0;
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flushPending();
+        }
+    };
+
+    /**
+     * @param executor must run tasks sequentially, or flushes could reach the disk out of order
+     */
+    public WriteBehindPreferences(SharedPreferences preferences, Executor executor) {
+        this.preferences = preferences;
+        this.executor = executor;
+    }
+
+    public Transaction edit() {
+        return new Transaction();
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Object value = getBuffered(key);
+
+        if (value == REMOVED)
+            return defaultValue;
+
+        if (value != null)
+            return (Long) value;
+
+        return preferences.getLong(key, defaultValue);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = getBuffered(key);
+
+        if (value == REMOVED)
+            return defaultValue;
+
+        if (value != null)
+            return (Boolean) value;
+
+        return preferences.getBoolean(key, defaultValue);
+    }
+
+    public String getString(String key, String defaultValue) {
+        Object value = getBuffered(key);
+
+        if (value == REMOVED)
+            return defaultValue;
+
+        if (value != null)
+            return (String) value;
+
+        return preferences.getString(key, defaultValue);
+    }
+
+    private Object getBuffered(String key) {
+        synchronized (lock) {
+            Object value = pending.get(key);
+
+            return value == null
+                    ? inFlight.get(key)
+                    : value;
+        }
+    }
+
+    protected void merge(Map<String, Object> changes) {
+        synchronized (lock) {
+            pending.putAll(changes);
+            writeGeneration++;
+
+            if (flushScheduled)
+                return;
+
+            this.flushScheduled = true;
+        }
+
+        executor.execute(flushRunnable);
+    }
+
+    protected void flushPending() {
+        HashMap<String, Object> batch;
+        long generation;
+
+        synchronized (lock) {
+            batch = pending;
+            generation = writeGeneration;
+
+            this.pending = new HashMap<String, Object>();
+            this.inFlight = batch;
+            this.flushScheduled = false;
+        }
+
+        SharedPreferences.Editor editor = preferences.edit();
+
+        for (Map.Entry<String, Object> entry : batch.entrySet()) {
+            Object value = entry.getValue();
+
+            if (value == REMOVED)
+                editor.remove(entry.getKey());
+            else if (value instanceof Long)
+                editor.putLong(entry.getKey(), (Long) value);
+            else if (value instanceof Boolean)
+                editor.putBoolean(entry.getKey(), (Boolean) value);
+            else if (value instanceof String)
+                editor.putString(entry.getKey(), (String) value);
+        }
+
+        boolean committed = editor.commit();
+
+        synchronized (lock) {
+            this.inFlight = new HashMap<String, Object>();
+
+            if (committed) {
+                this.persistedGeneration = Math.max(persistedGeneration, generation);
+            } else {
+                // Changes applied since the batch was taken are newer, so they win
+                for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                    if (!pending.containsKey(entry.getKey()))
+                        pending.put(entry.getKey(), entry.getValue());
+                }
+
+                this.failedGeneration = Math.max(failedGeneration, generation);
+            }
+
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Durability barrier: block until every mutation applied before this call has been
+     * committed to disk. Never call this from the persistence Executor itself.
+     *
+     * @return true if everything was persisted before the timeout, false as soon as the commit
+     * covering it failed with no further flush scheduled to retry it
+     */
+    public boolean awaitPersisted(long timeoutMs) {
+        // Not the wall clock, which can jump while waiting
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        synchronized (lock) {
+            long target = writeGeneration;
+
+            while (persistedGeneration < target) {
+                if (target <= failedGeneration && !flushScheduled)
+                    return false;
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+                if (remaining <= 0)
+                    return false;
+
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    public class Transaction {
+
+        private final HashMap<String, Object> changes = new HashMap<String, Object>();
+
+        public Transaction putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putString(String key, String value) {
+            changes.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        public Transaction remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        /**
+         * Make these changes visible to readers immediately and schedule them to be written to disk.
+         */
+        public void apply() {
+            if (!changes.isEmpty())
+                merge(changes);
+        }
+    }
+}
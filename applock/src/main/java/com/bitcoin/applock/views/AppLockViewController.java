@@ -2,7 +2,6 @@ package com.bitcoin.applock.views;
 
 import android.Manifest;
 import android.app.Activity;
-import android.app.Application;
 import android.content.Intent;
 import android.provider.Settings;
 import android.view.View;
@@ -12,6 +11,7 @@ import androidx.appcompat.widget.AppCompatImageView;
 import androidx.core.app.ActivityCompat;
 
 import com.bitcoin.applock.AppLock;
+import com.bitcoin.applock.AppLockConfiguration;
 import com.bitcoin.applock.R;
 import com.bitcoin.applock.pin.PINInputController;
 import com.bitcoin.applock.pin.PINInputView;
@@ -35,8 +35,7 @@ public abstract class AppLockViewController implements LifeCycleUtils.AppLockAct
     protected WeakReference<View> actionFallback;
 
     protected boolean autoAuthorizationEnabled = true;
-
-    protected Application.ActivityLifecycleCallbacks activityLifecycleCallbacks;
+    protected boolean settingsLaunched = false;
 
     public AppLockViewController(Activity activity, View parent) {
         this.activity = new WeakReference<Activity>(activity);
@@ -49,17 +48,14 @@ public abstract class AppLockViewController implements LifeCycleUtils.AppLockAct
         this.pinInputView = new WeakReference(parent.findViewById(R.id.pin__input_view));
         this.fingerprintAuthImageView = new WeakReference(parent.findViewById(R.id.pin__fingerprint_image));
 
-        int inputViewsCount = parent.getResources()
-                .getInteger(R.integer.applock__input_pin_item_count);
-
-        boolean passwordCharsEnabled = parent.getResources()
-                .getBoolean(R.bool.applock__item_password_chars_enabled);
+        AppLockConfiguration configuration = AppLock.getInstance(activity)
+                .getConfiguration();
 
         this.pinInputController = new PINInputController(pinInputView.get())
-                .setInputNumbersCount(inputViewsCount)
-                .setPasswordCharactersEnabled(passwordCharsEnabled);
+                .setInputNumbersCount(configuration.pinLength)
+                .setPasswordCharactersEnabled(configuration.passwordCharactersEnabled);
 
-        this.activityLifecycleCallbacks = LifeCycleUtils.attach(activity, this);
+        LifeCycleUtils.attach(activity, this);
     }
 
     public abstract void setupRootFlow();
@@ -161,6 +157,8 @@ public abstract class AppLockViewController implements LifeCycleUtils.AppLockAct
                 return R.string.applock__fingerprint_error_hardware;
             case AppLock.ERROR_CODE_FINGERPRINTS_NOT_LOCALLY_ENROLLED:
                 return R.string.applock__fingerprint_error_not_enrolled;
+            case AppLock.ERROR_CODE_PIN_KEY_LOST:
+                return R.string.applock__unlock_error_pin_key_lost;
             default:
                 return R.string.applock__fingerprint_error_unknown;
         }
@@ -182,18 +180,57 @@ public abstract class AppLockViewController implements LifeCycleUtils.AppLockAct
         }
     }
 
+    /**
+     * Send the user to a system settings screen. The device capabilities are refreshed
+     * when they return, since they likely went there to change them.
+     */
+    protected void startSettingsActivity(Intent intent) {
+        Activity activity = this.activity.get();
+
+        if (activity == null || intent == null)
+            return;
+
+        this.settingsLaunched = true;
+
+        activity.startActivity(intent);
+    }
+
+    /**
+     * If the user is returning from startSettingsActivity(Intent), refresh the device
+     * capabilities off the main thread and run onActivityResumed() again once they're ready.
+     *
+     * @return true if the resume has been deferred until the refresh completes
+     */
+    protected boolean deferResumeForCapabilityRefresh() {
+        Activity activity = this.activity.get();
+
+        if (activity == null || !settingsLaunched)
+            return false;
+
+        this.settingsLaunched = false;
+
+        AppLock.getInstance(activity)
+                .refreshDeviceCapabilities(new Runnable() {
+                    public void run() {
+                        onActivityResumed();
+                    }
+                });
+
+        return true;
+    }
+
     public void unregisterReceivers() {
         Activity activity = this.activity.get();
 
         if (activity == null)
             return;
 
-        activity.getApplication()
-                .unregisterActivityLifecycleCallbacks(activityLifecycleCallbacks);
+        LifeCycleUtils.detach(activity, this);
     }
 
     @Override
     public void onActivityResumed() {
+        deferResumeForCapabilityRefresh();
     }
 
     @Override
@@ -19,19 +19,22 @@ import com.bitcoin.applock.R;
 import com.bitcoin.applock.pin.PINInputController;
 import com.bitcoin.applock.services.BiometricsLockService;
 import com.bitcoin.applock.services.FingerprintLockService;
+import com.bitcoin.applock.services.LockServiceHandle;
 import com.bitcoin.applock.services.PINLockService;
+import com.bitcoin.applock.utils.CryptoUtils;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 public class LockCreationViewController extends AppLockViewController
-        implements PINInputController.InputEventListener,
+        implements PINInputController.SecureInputEventListener,
         FingerprintLockService.AuthenticationDelegate,
         BiometricsLockService.AuthenticationDelegate {
 
     protected DisplayVariant displayVariant = DisplayVariant.NONE;
     protected WeakReference<Delegate> delegate;
     protected WeakReference<View> chooserParent;
-    protected String pinFirst;
+    protected char[] pinFirst;
 
     public LockCreationViewController(Activity activity, View parent) {
         super(activity, parent);
@@ -53,9 +56,9 @@ public class LockCreationViewController extends AppLockViewController
             return;
 
         BiometricsLockService biometricsLockService = AppLock.getInstance(activity)
-                .getLockService(BiometricsLockService.class);
+                .getLockService(LockServiceHandle.BIOMETRICS);
 
-        if (biometricsLockService.isEnrollmentEligible(activity)) {
+        if (biometricsLockService != null && biometricsLockService.isEnrollmentEligible(activity)) {
             setupBiometricCreation();
             return;
         }
@@ -67,6 +70,8 @@ public class LockCreationViewController extends AppLockViewController
     protected void setupCreationChooser() {
         this.displayVariant = DisplayVariant.CHOOSER;
 
+        prepareFingerprintAuthentication();
+
         hide(fingerprintAuthImageView);
         hide(pinInputView);
         hide(actionFallback);
@@ -152,28 +157,40 @@ public class LockCreationViewController extends AppLockViewController
 
     @Override
     public void onInputEntered(String input) {
+        char[] chars = input.toCharArray();
+
+        try {
+            onInputEntered(chars, chars.length);
+        } finally {
+            CryptoUtils.wipe(chars);
+        }
+    }
+
+    @Override
+    public void onInputEntered(char[] input, int length) {
         switch (displayVariant) {
             case PIN_CREATION:
-                if (!pinInputController.matchesRequiredPINLength(input)) {
+                if (!pinInputController.matchesRequiredPINLength(length)) {
                     setDescription(R.string.applock__unlock_error_insufficient_selection);
 
                     return;
                 }
 
-                this.pinFirst = input;
+                clearPINFirst();
+                this.pinFirst = Arrays.copyOf(input, length);
 
                 setupPINConfirmation();
 
                 break;
             case PIN_CONFIRMATION:
-                if (!pinInputController.matchesRequiredPINLength(input)) {
+                if (!pinInputController.matchesRequiredPINLength(length)) {
                     setDescription(R.string.applock__unlock_error_insufficient_selection);
 
                     return;
                 }
 
-                if (!input.equals(pinFirst)) {
-                    this.pinFirst = null;
+                if (pinFirst == null || !CryptoUtils.constantTimeEquals(input, length, pinFirst, pinFirst.length)) {
+                    clearPINFirst();
 
                     setupPINCreation();
                     setDescription(R.string.applock__description_create_pin_reattempt);
@@ -181,7 +198,8 @@ public class LockCreationViewController extends AppLockViewController
                     return;
                 }
 
-                createPINLock(input);
+                clearPINFirst();
+                createPINLock(input, length);
 
                 break;
             default:
@@ -189,17 +207,45 @@ public class LockCreationViewController extends AppLockViewController
         }
     }
 
+    protected void clearPINFirst() {
+        CryptoUtils.wipe(pinFirst);
+
+        this.pinFirst = null;
+    }
+
     protected void createPINLock(String input) {
+        char[] chars = input.toCharArray();
+
+        try {
+            createPINLock(chars, chars.length);
+        } finally {
+            CryptoUtils.wipe(chars);
+        }
+    }
+
+    protected void createPINLock(char[] input, int length) {
         Activity activity = this.activity.get();
 
         if (activity == null)
             return;
 
+        // Ignore any further input until the PIN has been derived and saved
+        this.displayVariant = DisplayVariant.NONE;
+
         AppLock.getInstance(activity)
-                .getLockService(PINLockService.class)
-                .enroll(activity, input);
+                .getLockService(LockServiceHandle.PIN)
+                .enroll(activity, input, length, new PINLockService.EnrollmentDelegate() {
+                    @Override
+                    public void onEnrolled() {
+                        handleLockCreated();
+                    }
 
-        handleLockCreated();
+                    @Override
+                    public void onEnrollmentFailed() {
+                        setupPINCreation();
+                        setDescription(R.string.applock__description_create_pin_failed);
+                    }
+                });
     }
 
     protected void setupFingerprintAuthentication() {
@@ -219,15 +265,34 @@ public class LockCreationViewController extends AppLockViewController
             attemptFingerprintAuthentication();
     }
 
+    protected void prepareFingerprintAuthentication() {
+        Activity activity = this.activity.get();
+
+        if (activity == null)
+            return;
+
+        FingerprintLockService service = AppLock.getInstance(activity)
+                .getLockService(LockServiceHandle.FINGERPRINT);
+
+        if (service != null)
+            service.prepareAuthentication(activity);
+    }
+
     protected void attemptFingerprintAuthentication() {
         Activity activity = this.activity.get();
 
         if (activity == null)
             return;
 
-        AppLock.getInstance(activity)
-                .getLockService(FingerprintLockService.class)
-                .enroll(activity, this);
+        FingerprintLockService service = AppLock.getInstance(activity)
+                .getLockService(LockServiceHandle.FINGERPRINT);
+
+        if (service == null) {
+            onResolutionRequired(AppLock.ERROR_CODE_FINGERPRINTS_MISSING_HARDWARE);
+            return;
+        }
+
+        service.enroll(activity, this);
         handleLockCreated();
     }
 
@@ -238,7 +303,7 @@ public class LockCreationViewController extends AppLockViewController
             return;
 
         AppLock.getInstance(activity)
-                .getLockService(BiometricsLockService.class)
+                .getLockService(LockServiceHandle.BIOMETRICS)
                 .enroll(activity, this);
 
         handleLockCreated();
@@ -319,10 +384,14 @@ public class LockCreationViewController extends AppLockViewController
     public void onActivityResumed() {
         Activity activity = this.activity.get();
 
-        if (activity == null || displayVariant != DisplayVariant.FINGERPRINT_AUTHENTICATION)
+        if (activity == null || deferResumeForCapabilityRefresh() || displayVariant != DisplayVariant.FINGERPRINT_AUTHENTICATION)
             return;
 
-        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.USE_FINGERPRINT) != PackageManager.PERMISSION_GRANTED) {
+        boolean permissionGranted = AppLock.getInstance(activity)
+                .getDeviceCapabilities()
+                .isFingerprintPermissionGranted();
+
+        if (!permissionGranted) {
             setDescription(R.string.applock__fingerprint_error_permission_multiple);
             updateActionSettings(AppLock.ERROR_CODE_FINGERPRINTS_PERMISSION_REQUIRED);
 
@@ -338,13 +407,7 @@ public class LockCreationViewController extends AppLockViewController
 
     @Override
     protected void handleActionSettingsClicked(int errorCode) {
-        Activity activity = this.activity.get();
-        Intent intent = getSettingsIntent(errorCode);
-
-        if (activity == null || intent == null)
-            return;
-
-        activity.startActivity(intent);
+        startSettingsActivity(getSettingsIntent(errorCode));
     }
 
     public enum DisplayVariant {
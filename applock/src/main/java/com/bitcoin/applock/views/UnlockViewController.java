@@ -9,22 +9,31 @@ import android.provider.Settings;
 import android.view.View;
 
 import androidx.core.content.ContextCompat;
+import androidx.fragment.app.FragmentActivity;
 
 import com.bitcoin.applock.AppLock;
 import com.bitcoin.applock.R;
 import com.bitcoin.applock.pin.PINInputController;
 import com.bitcoin.applock.services.BiometricsLockService;
 import com.bitcoin.applock.services.FingerprintLockService;
+import com.bitcoin.applock.services.LockServiceHandle;
+import com.bitcoin.applock.utils.CryptoUtils;
 
 import java.lang.ref.WeakReference;
 
-public class UnlockViewController extends AppLockViewController implements AppLock.UnlockDelegate, PINInputController.InputEventListener {
+public class UnlockViewController extends AppLockViewController implements AppLock.UnlockDelegate, PINInputController.SecureInputEventListener {
 
     protected DisplayVariant displayVariant = DisplayVariant.PIN_UNLOCK;
     protected WeakReference<Delegate> delegate;
 
     public UnlockViewController(Activity activity, View parent) {
         super(activity, parent);
+
+        BiometricsLockService biometricsLockService = AppLock.getInstance(activity)
+                .getLockService(LockServiceHandle.BIOMETRICS);
+
+        if (biometricsLockService != null && activity instanceof FragmentActivity)
+            biometricsLockService.attach((FragmentActivity) activity);
     }
 
     public UnlockViewController setDelegate(Delegate delegate) {
@@ -40,24 +49,43 @@ public class UnlockViewController extends AppLockViewController implements AppLo
         if (parent == null)
             return;
 
-        BiometricsLockService biometricsLockService = AppLock.getInstance(parent.getContext())
-                .getLockService(BiometricsLockService.class);
+        AppLock appLock = AppLock.getInstance(parent.getContext());
+        BiometricsLockService biometricsLockService = appLock.getLockService(LockServiceHandle.BIOMETRICS);
 
-        if (biometricsLockService.isEnrolled(parent.getContext()) || biometricsLockService.isEnrollmentEligible(parent.getContext())) {
-            setupBiometricUnlock();
-            return;
+        if (biometricsLockService != null
+                && (biometricsLockService.isEnrolled(parent.getContext()) || biometricsLockService.isEnrollmentEligible(parent.getContext()))) {
+            if (!requiresPINAfterKeyInvalidation(appLock, LockServiceHandle.BIOMETRICS)) {
+                setupBiometricUnlock();
+                return;
+            }
         }
 
-        FingerprintLockService fingerprintService = AppLock.getInstance(parent.getContext())
-                .getLockService(FingerprintLockService.class);
+        FingerprintLockService fingerprintService = appLock.getLockService(LockServiceHandle.FINGERPRINT);
 
-        if (fingerprintService.isEnrolled(parent.getContext())) {
+        if (fingerprintService != null
+                && fingerprintService.isEnrolled(parent.getContext())
+                && !requiresPINAfterKeyInvalidation(appLock, LockServiceHandle.FINGERPRINT)) {
+            fingerprintService.prepareAuthentication(parent.getContext());
             setupFingerprintUnlock();
         } else {
             setupPINUnlock();
         }
     }
 
+    /**
+     * A biometric was added to the device since handle's key was created, so have the user confirm
+     * with their PIN first, if they have one to fall back on.
+     */
+    protected boolean requiresPINAfterKeyInvalidation(AppLock appLock, LockServiceHandle<?> handle) {
+        if (!appLock.isKeyInvalidated(handle))
+            return false;
+
+        View parent = this.parent.get();
+
+        return parent != null
+                && appLock.getLockService(LockServiceHandle.PIN).isEnrolled(parent.getContext());
+    }
+
     protected void setupPINUnlock() {
         this.displayVariant = DisplayVariant.PIN_UNLOCK;
 
@@ -67,31 +95,64 @@ public class UnlockViewController extends AppLockViewController implements AppLo
         hide(biometricsImageView);
         show(pinInputView);
 
-        setDescription(R.string.applock__description_unlock_pin);
+        View parent = this.parent.get();
+
+        if (parent != null && AppLock.getInstance(parent.getContext()).isKeyInvalidated(LockServiceHandle.PIN))
+            setDescription(R.string.applock__unlock_error_pin_key_lost);
+        else if (parent != null && isAnyKeyInvalidated(AppLock.getInstance(parent.getContext())))
+            setDescription(R.string.applock__description_unlock_pin_key_invalidated);
+        else
+            setDescription(R.string.applock__description_unlock_pin);
 
         pinInputController.ensureKeyboardVisible();
         pinInputController.setInputEventListener(this);
     }
 
+    protected boolean isAnyKeyInvalidated(AppLock appLock) {
+        return appLock.isKeyInvalidated(LockServiceHandle.BIOMETRICS)
+                || appLock.isKeyInvalidated(LockServiceHandle.FINGERPRINT);
+    }
+
     @Override
     public void onInputEntered(String input) {
-        if (!pinInputController.matchesRequiredPINLength(input)) {
+        char[] chars = input.toCharArray();
+
+        try {
+            onInputEntered(chars, chars.length);
+        } finally {
+            CryptoUtils.wipe(chars);
+        }
+    }
+
+    @Override
+    public void onInputEntered(char[] input, int length) {
+        if (!pinInputController.matchesRequiredPINLength(length)) {
             setDescription(R.string.applock__unlock_error_insufficient_selection);
 
             return;
         }
 
-        attemptPINUnlock(input);
+        attemptPINUnlock(input, length);
     }
 
     protected void attemptPINUnlock(String input) {
+        char[] chars = input.toCharArray();
+
+        try {
+            attemptPINUnlock(chars, chars.length);
+        } finally {
+            CryptoUtils.wipe(chars);
+        }
+    }
+
+    protected void attemptPINUnlock(char[] input, int length) {
         Activity activity = this.activity.get();
 
         if (activity == null)
             return;
 
         AppLock.getInstance(activity)
-                .attemptPINUnlock(input, this);
+                .attemptPINUnlock(input, length, this);
     }
     protected void setupBiometricUnlock() {
         this.displayVariant = DisplayVariant.BIOMETRIC_AUTHENTICATION;
@@ -196,6 +257,12 @@ public class UnlockViewController extends AppLockViewController implements AppLo
         if (activity == null)
             return;
 
+        if (code == AppLock.HELP_CODE_PIN_VERIFICATION_BUSY) {
+            setDescription(message);
+
+            return;
+        }
+
         String unformattedHelpMessage = activity.getString(R.string.applock__description_unlock_fingerprint_help);
         String formatted = String.format(unformattedHelpMessage, message);
 
@@ -223,13 +290,7 @@ public class UnlockViewController extends AppLockViewController implements AppLo
 
     @Override
     protected void handleActionSettingsClicked(int errorCode) {
-        Activity activity = this.activity.get();
-        Intent intent = getSettingsIntent(errorCode);
-
-        if (activity == null || intent == null)
-            return;
-
-        activity.startActivity(intent);
+        startSettingsActivity(getSettingsIntent(errorCode));
     }
 
     public enum DisplayVariant {
@@ -0,0 +1,362 @@
+package com.bitcoin.applock;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.bitcoin.applock.services.LockServiceHandle;
+import com.bitcoin.applock.services.PINLockService;
+import com.bitcoin.applock.utils.Pbkdf2KeyDerivation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Hammers one AppLock from several threads at once: lock checks, PIN unlocks, failures, and
+ * invalidations, the way background workers and the UI can all reach it concurrently.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AppLockConcurrencyStressTest {
+
+    private static final String PIN = "1234";
+    private static final String WRONG_PIN = "4321";
+    private static final int THREADS = 6;
+    private static final int ITERATIONS = 200;
+    private static final long TIMEOUT_MS = 30000;
+
+    private Context context;
+    private AppLock appLock;
+    private PINLockService pinService;
+    private ExecutorService workers;
+
+    @Before
+    public void setup() {
+        this.context = ApplicationProvider.getApplicationContext();
+        this.workers = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        workers.shutdownNow();
+        workers.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void getInstanceCreatesASingleInstance() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<AppLock>> results = new ArrayList<Future<AppLock>>();
+
+        for (int i = 0; i < THREADS; i++) {
+            results.add(workers.submit(new Callable<AppLock>() {
+                public AppLock call() throws Exception {
+                    start.await();
+
+                    return AppLock.getInstance(context);
+                }
+            }));
+        }
+
+        start.countDown();
+
+        AppLock first = results.get(0).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        for (Future<AppLock> result : results)
+            assertSame(first, result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void unlocksChecksAndInvalidationsRaceSafely() throws Exception {
+        createAppLock(Integer.MAX_VALUE);
+        pinService.enroll(context, PIN);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final RecordingUnlockDelegate delegate = new RecordingUnlockDelegate();
+        final int pinFlag = LockServiceHandle.PIN.getEnrollmentFlag();
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        // Lock checks, as background workers would make them
+        for (int i = 0; i < 2; i++) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int j = 0; j < ITERATIONS * 10; j++) {
+                        LockState state = appLock.getLockState();
+
+                        // A snapshot is published whole, so it can't claim an enrollment it hasn't resolved
+                        if (state.isEnrolled(pinFlag))
+                            assertTrue(state.isEnrollmentKnown(pinFlag));
+
+                        appLock.isUnlockRequired(0);
+                        appLock.isEnrolled();
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        // PIN unlocks, right and wrong, most of which are rejected while another is being verified
+        for (int i = 0; i < 3; i++) {
+            final boolean correct = i % 2 == 0;
+
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int j = 0; j < ITERATIONS; j++)
+                        appLock.attemptPINUnlock(correct ? PIN : WRONG_PIN, delegate);
+
+                    return null;
+                }
+            });
+        }
+
+        // Invalidation and re-enrollment, as a logout followed by a new lock would do
+        tasks.add(new Callable<Void>() {
+            public Void call() {
+                for (int j = 0; j < ITERATIONS / 10; j++) {
+                    appLock.invalidateEnrollments();
+                    pinService.enroll(context, PIN);
+                }
+
+                return null;
+            }
+        });
+
+        runConcurrently(tasks, failure);
+
+        drainPendingVerification();
+
+        assertNull(failure.get());
+        assertEquals(0, delegate.unexpected.get());
+        assertTrue(0 < delegate.callbacks.get());
+
+        // Once quiet, the in-memory snapshot agrees with what the service persisted
+        assertTrue(pinService.isEnrolled(context));
+        assertTrue(appLock.isEnrolled());
+        assertTrue(appLock.getLockState().isEnrolled(pinFlag));
+        assertTrue(appLock.awaitPersisted(TIMEOUT_MS));
+    }
+
+    @Test
+    public void concurrentFailuresAreAllCountedAndPersisted() throws Exception {
+        createAppLock(Integer.MAX_VALUE);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int j = 0; j < ITERATIONS; j++)
+                        appLock.onUnlockFailed();
+
+                    return null;
+                }
+            });
+        }
+
+        runConcurrently(tasks, failure);
+
+        assertNull(failure.get());
+        assertEquals(THREADS * ITERATIONS, appLock.getFailureThrottle().getFailedAttempts());
+        assertTrue(appLock.awaitPersisted(TIMEOUT_MS));
+
+        // The last write to reach the preferences has to be the last failure, not a stale one
+        FailureThrottle reloaded = new FailureThrottle(Integer.MAX_VALUE, 1000, 1000);
+        reloaded.load(context, appLock.getPersistence());
+
+        assertEquals(THREADS * ITERATIONS, reloaded.getFailedAttempts());
+    }
+
+    @Test
+    public void concurrentFailuresStartExactlyTheExpectedLockouts() throws Exception {
+        final int maxAttempts = 5;
+
+        createAppLock(maxAttempts);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int j = 0; j < maxAttempts * 10; j++)
+                        appLock.onUnlockFailed();
+
+                    return null;
+                }
+            });
+        }
+
+        runConcurrently(tasks, failure);
+
+        assertNull(failure.get());
+        assertEquals(THREADS * 10, appLock.getFailureThrottle().getLockouts());
+        assertEquals(0, appLock.getFailureThrottle().getFailedAttempts());
+        assertTrue(appLock.isUnlockFailureBlockEnabled());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void authenticationRequiredIsVisibleToEveryThread() throws Exception {
+        createAppLock(Integer.MAX_VALUE);
+        pinService.enroll(context, PIN);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch locked = new CountDownLatch(1);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < THREADS - 1; i++) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    assertTrue(locked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+                    // Published under the instance's monitor and read through volatiles, so it can't be missed
+                    assertTrue(appLock.unlockPending);
+                    assertEquals(0, appLock.getLockState().getUnlockSuccessTime());
+
+                    return null;
+                }
+            });
+        }
+
+        tasks.add(new Callable<Void>() {
+            public Void call() {
+                appLock.onUnlockSuccessful(null);
+                appLock.setAuthenticationRequired();
+                locked.countDown();
+
+                return null;
+            }
+        });
+
+        runConcurrently(tasks, failure);
+
+        assertNull(failure.get());
+        assertFalse(appLock.getFailureThrottle().isLockedOut());
+    }
+
+    private void createAppLock(int maxRetryCount) {
+        context.getSharedPreferences("pin__preferences", 0)
+                .edit()
+                .clear()
+                .commit();
+
+        AppLockConfiguration configuration = new AppLockConfiguration.Builder(context)
+                .unregisterLockService(LockServiceHandle.BIOMETRICS)
+                .unregisterLockService(LockServiceHandle.FINGERPRINT)
+                .setPINKeyDerivationAlgorithm(Pbkdf2KeyDerivation.ALGORITHM)
+                .setPINKeyDerivationTargetMs(1)
+                .setMaxRetryCount(maxRetryCount)
+                .build();
+
+        this.appLock = new AppLock(context, configuration);
+        this.pinService = appLock.getLockService(LockServiceHandle.PIN);
+    }
+
+    /**
+     * Run every task on its own worker at once, while the test thread keeps delivering the
+     * main thread callbacks they cause. The first thing any task throws is kept in failure.
+     */
+    private void runConcurrently(List<Callable<Void>> tasks, AtomicReference<Throwable> failure) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        for (final Callable<Void> task : tasks) {
+            results.add(workers.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+
+                    return task.call();
+                }
+            }));
+        }
+
+        start.countDown();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+
+        for (Future<Void> result : results) {
+            while (!result.isDone()) {
+                assertTrue("Stress test timed out", System.nanoTime() < deadline);
+
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(1);
+            }
+
+            try {
+                result.get();
+            } catch (Exception e) {
+                failure.compareAndSet(null, e.getCause() == null ? e : e.getCause());
+            }
+        }
+    }
+
+    private void drainPendingVerification() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+
+        do {
+            shadowOf(Looper.getMainLooper()).idle();
+            Thread.sleep(1);
+        } while (pinService.isAuthenticating() && System.nanoTime() < deadline);
+
+        assertFalse(pinService.isAuthenticating());
+    }
+
+    private static class RecordingUnlockDelegate implements AppLock.UnlockDelegate {
+
+        final AtomicInteger callbacks = new AtomicInteger();
+        final AtomicInteger unexpected = new AtomicInteger();
+
+        @Override
+        public void onUnlockSuccessful() {
+            callbacks.incrementAndGet();
+        }
+
+        @Override
+        public void onCancel() {
+            unexpected.incrementAndGet();
+        }
+
+        @Override
+        public void onResolutionRequired(int errorCode) {
+            unexpected.incrementAndGet();
+        }
+
+        @Override
+        public void onAuthenticationHelp(int code, String message) {
+            if (code != AppLock.HELP_CODE_PIN_VERIFICATION_BUSY)
+                unexpected.incrementAndGet();
+
+            callbacks.incrementAndGet();
+        }
+
+        @Override
+        public void onFailureLimitExceeded(String message) {
+            // Also how a wrong PIN, or one checked against an invalidated enrollment, is reported
+            callbacks.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.bitcoin.applock.pin;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.widget.EditText;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drawing the PIN runs on every animation frame, so it must not allocate.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PINDrawAllocationTest {
+
+    private static final int WARM_UP_DRAWS = 2000;
+    private static final int MEASURED_DRAWS = 10000;
+
+    private Context context;
+    private CountingCanvas canvas;
+
+    @Before
+    public void setup() {
+        assumeTrue(getThreadMXBean().isThreadAllocatedMemorySupported());
+
+        getThreadMXBean().setThreadAllocatedMemoryEnabled(true);
+
+        this.context = ApplicationProvider.getApplicationContext();
+        this.canvas = new CountingCanvas();
+    }
+
+    @Test
+    public void itemDrawDoesNotAllocate() {
+        Paint textPaint = new Paint();
+        textPaint.setTextSize(24);
+
+        final PINItemView item = new PINItemView(new float[]{50, 50}, new int[]{10, 40}, textPaint, new Paint(), context.getResources());
+        final char[] text = "1234".toCharArray();
+
+        long allocated = measureAllocatedBytes(new Runnable() {
+            public void run() {
+                item.draw(canvas, text, 1, 1);
+                item.draw(canvas, text, 0, 0);
+            }
+        });
+
+        assertAllocationFree(allocated);
+        assertEquals((WARM_UP_DRAWS + MEASURED_DRAWS) * 2, canvas.circles);
+        assertEquals(WARM_UP_DRAWS + MEASURED_DRAWS, canvas.texts);
+    }
+
+    @Test
+    public void inputViewDrawDoesNotAllocateWithPasswordCharacters() {
+        PINInputView inputView = createInputView("1234");
+
+        assertAllocationFree(measureAllocatedBytes(drawing(inputView)));
+        assertTrue(0 < canvas.texts);
+    }
+
+    @Test
+    public void inputViewDrawDoesNotAllocateWithPlainText() {
+        PINInputView inputView = createInputView("1234");
+        inputView.setPasswordCharactersEnabled(false);
+
+        assertAllocationFree(measureAllocatedBytes(drawing(inputView)));
+        assertTrue(0 < canvas.texts);
+    }
+
+    @Test
+    public void inputViewDrawDoesNotAllocateWithAClip() {
+        PINInputView inputView = createInputView("1234");
+
+        // Only the first of the four 250px wide cells, the way a partial invalidation clips it
+        canvas.clip = new Rect(0, 0, 250, 100);
+
+        assertAllocationFree(measureAllocatedBytes(drawing(inputView)));
+        assertEquals(WARM_UP_DRAWS + MEASURED_DRAWS, canvas.circles);
+        assertEquals(WARM_UP_DRAWS + MEASURED_DRAWS, canvas.texts);
+    }
+
+    @Test
+    public void changingTheCountRebuildsTheCellsOutsideOfDraw() {
+        PINInputView inputView = createInputView("");
+        inputView.setInputViewsCount(6);
+
+        assertAllocationFree(measureAllocatedBytes(drawing(inputView)));
+        assertEquals((WARM_UP_DRAWS + MEASURED_DRAWS) * 6, canvas.circles);
+    }
+
+    private PINInputView createInputView(String text) {
+        PINInputView inputView = new PINInputView(context, null);
+        inputView.layout(0, 0, 1000, 100);
+
+        ((EditText) inputView.getChildAt(0)).setText(text);
+
+        return inputView;
+    }
+
+    private Runnable drawing(final PINInputView inputView) {
+        return new Runnable() {
+            public void run() {
+                inputView.onDraw(canvas);
+            }
+        };
+    }
+
+    private static long measureAllocatedBytes(Runnable draw) {
+        for (int i = 0; i < WARM_UP_DRAWS; i++)
+            draw.run();
+
+        long start = getAllocatedBytes();
+
+        for (int i = 0; i < MEASURED_DRAWS; i++)
+            draw.run();
+
+        return getAllocatedBytes() - start;
+    }
+
+    private static void assertAllocationFree(long allocated) {
+        // Reading the counter may allocate a few bytes itself, but never one per draw
+        assertTrue("Allocated " + allocated + " bytes over " + MEASURED_DRAWS + " draws", allocated < MEASURED_DRAWS);
+    }
+
+    private static long getAllocatedBytes() {
+        return getThreadMXBean().getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * Counts draw calls instead of rasterizing, so only the views' own allocations are measured.
+     */
+    private static class CountingCanvas extends Canvas {
+
+        int circles;
+        int texts;
+
+        // Reported by getClipBounds when set; otherwise the canvas claims to be unclipped
+        Rect clip;
+
+        @Override
+        public void drawCircle(float cx, float cy, float radius, Paint paint) {
+            circles++;
+        }
+
+        @Override
+        public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+            texts++;
+        }
+
+        @Override
+        public boolean getClipBounds(Rect bounds) {
+            if (clip == null)
+                return false;
+
+            bounds.set(clip);
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.bitcoin.applock.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Known-answer tests for the hand-rolled HMAC-SHA256 and the PBKDF2 built on it: the RFC 4231
+ * vectors, the RFC 7914 PBKDF2-HMAC-SHA256 vectors, and a cross-check against javax.crypto.Mac
+ * around every block boundary.
+ */
+public class HmacSha256Test {
+
+    @Test
+    public void rfc4231TestCase1() {
+        assertMac(repeat(0x0b, 20),
+                ascii("Hi There"),
+                "b0344c61d8db38535ca8afceaf0bf12b881dc200c9833da726e9376c2e32cff7");
+    }
+
+    @Test
+    public void rfc4231TestCase2() {
+        assertMac(ascii("Jefe"),
+                ascii("what do ya want for nothing?"),
+                "5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843");
+    }
+
+    @Test
+    public void rfc4231TestCase3() {
+        assertMac(repeat(0xaa, 20),
+                repeat(0xdd, 50),
+                "773ea91e36800e46854db8ebd09181a72959098b3ef8c122d9635514ced565fe");
+    }
+
+    @Test
+    public void rfc4231TestCase4() {
+        assertMac(hex("0102030405060708090a0b0c0d0e0f10111213141516171819"),
+                repeat(0xcd, 50),
+                "82558a389a443c0ea4cc819899f2083a85f0faa3e578f8077a2e3ff46729665b");
+    }
+
+    @Test
+    public void rfc4231TestCase5TruncatedTo128Bits() {
+        byte[] mac = mac(repeat(0x0c, 20), ascii("Test With Truncation"));
+
+        assertEquals("a3b6167473100ee06e0c796c2955552b", toHex(Arrays.copyOf(mac, 16)));
+    }
+
+    @Test
+    public void rfc4231TestCase6KeyLargerThanABlock() {
+        assertMac(repeat(0xaa, 131),
+                ascii("Test Using Larger Than Block-Size Key - Hash Key First"),
+                "60e431591ee0b67f0d8a26aacbf5b77f8e0bc6213728c5140546040f0ee37f54");
+    }
+
+    @Test
+    public void rfc4231TestCase7KeyAndDataLargerThanABlock() {
+        assertMac(repeat(0xaa, 131),
+                ascii("This is a test using a larger than block-size key and a larger than block-size data. "
+                        + "The key needs to be hashed before being used by the HMAC algorithm."),
+                "9b09ffa71b942fcb27635fbcd5b0e944bfdc63644f0713938a7f51535c3a35e2");
+    }
+
+    @Test
+    public void rfc7914Pbkdf2Vectors() throws Exception {
+        assertPbkdf2("passwd", "salt", 1, 64,
+                "55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+                        + "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+        assertPbkdf2("Password", "NaCl", 80000, 64,
+                "4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56"
+                        + "a1d425a1225833549adb841b51c9b3176a272bdebba1d078478f62b397f33c8d");
+    }
+
+    @Test
+    public void matchesThePlatformMacAcrossBlockBoundaries() throws Exception {
+        Random random = new Random(4231);
+        Mac platform = Mac.getInstance("HmacSHA256");
+
+        for (int keyLength = 1; keyLength <= 130; keyLength += 3) {
+            byte[] key = new byte[keyLength];
+            random.nextBytes(key);
+
+            HmacSha256 mac = new HmacSha256(key, keyLength);
+            platform.init(new SecretKeySpec(key, "HmacSHA256"));
+
+            // Reused after every doFinal, the way PBKDF2 uses it
+            for (int dataLength = 0; dataLength <= 200; dataLength += 7) {
+                byte[] data = new byte[dataLength];
+                random.nextBytes(data);
+
+                // Split unevenly so the buffered and the whole-block paths are both taken
+                int split = dataLength / 3;
+                mac.update(data, 0, split);
+                mac.update(data, split, dataLength - split);
+
+                byte[] out = new byte[HmacSha256.MAC_LENGTH];
+                mac.doFinal(out, 0);
+
+                assertArrayEquals("key " + keyLength + ", data " + dataLength, platform.doFinal(data), out);
+            }
+
+            mac.wipe();
+        }
+    }
+
+    @Test
+    public void onlyTheGivenKeyLengthIsUsed() {
+        byte[] key = ascii("Jefe");
+        byte[] padded = Arrays.copyOf(key, 32);
+        Arrays.fill(padded, key.length, padded.length, (byte) 0x7f);
+
+        HmacSha256 mac = new HmacSha256(padded, key.length);
+        mac.update(ascii("what do ya want for nothing?"));
+
+        byte[] out = new byte[HmacSha256.MAC_LENGTH];
+        mac.doFinal(out, 0);
+
+        assertEquals("5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843", toHex(out));
+    }
+
+    private static void assertMac(byte[] key, byte[] data, String expected) {
+        assertEquals(expected, toHex(mac(key, data)));
+    }
+
+    private static byte[] mac(byte[] key, byte[] data) {
+        HmacSha256 mac = new HmacSha256(key, key.length);
+        byte[] out = new byte[HmacSha256.MAC_LENGTH];
+
+        try {
+            mac.update(data);
+            mac.doFinal(out, 0);
+        } finally {
+            mac.wipe();
+        }
+
+        return out;
+    }
+
+    private static void assertPbkdf2(String password, String salt, int iterations, int length, String expected) throws Exception {
+        byte[] key = ascii(password);
+        byte[] out = new byte[length];
+        HmacSha256 mac = new HmacSha256(key, key.length);
+
+        try {
+            Pbkdf2KeyDerivation.pbkdf2(mac, ascii(salt), iterations, out, length);
+        } finally {
+            mac.wipe();
+        }
+
+        assertEquals(expected, toHex(out));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] repeat(int value, int count) {
+        byte[] bytes = new byte[count];
+        Arrays.fill(bytes, (byte) value);
+
+        return bytes;
+    }
+
+    private static byte[] hex(String value) {
+        byte[] bytes = new byte[value.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes)
+            builder.append(String.format("%02x", b & 0xff));
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.bitcoin.applock.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The keystore HMAC itself needs a device, but the software side of the comparison and the
+ * shape of benchmark()'s result don't.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyDerivationBenchmarkTest {
+
+    @Test
+    public void benchmarkReturnsEveryRoundSorted() throws Exception {
+        KeyDerivation software = KeyDerivation.calibrate(new Pbkdf2KeyDerivation(Pbkdf2KeyDerivation.MINIMUM_ITERATIONS), 20);
+
+        long[] timings = KeyDerivation.benchmark(software, 5);
+
+        assertEquals(5, timings.length);
+
+        for (int i = 1; i < timings.length; i++)
+            assertTrue(timings[i - 1] <= timings[i]);
+    }
+
+    @Test
+    public void calibratedCostIsNeverBelowTheMinimum() throws Exception {
+        KeyDerivation software = KeyDerivation.calibrate(new Pbkdf2KeyDerivation(Pbkdf2KeyDerivation.MINIMUM_ITERATIONS), 20);
+
+        assertTrue(Pbkdf2KeyDerivation.MINIMUM_ITERATIONS <= software.getCost());
+    }
+}
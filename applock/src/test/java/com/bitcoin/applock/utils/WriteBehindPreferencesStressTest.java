@@ -0,0 +1,351 @@
+package com.bitcoin.applock.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers WriteBehindPreferences from several threads at once: readers must always see their
+ * own latest writes, and awaitPersisted must only return once those writes are on disk.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WriteBehindPreferencesStressTest {
+
+    private static final int WRITER_THREADS = 8;
+    private static final int WRITES_PER_THREAD = 500;
+    private static final long TIMEOUT_MS = 10000;
+
+    private SharedPreferences preferences;
+    private ExecutorService persistenceExecutor;
+    private ExecutorService writers;
+
+    @Before
+    public void setup() {
+        this.preferences = ApplicationProvider.<Context>getApplicationContext()
+                .getSharedPreferences("write_behind_stress", Context.MODE_PRIVATE);
+        this.preferences.edit().clear().commit();
+
+        this.persistenceExecutor = Executors.newSingleThreadExecutor();
+        this.writers = Executors.newFixedThreadPool(WRITER_THREADS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        writers.shutdownNow();
+        persistenceExecutor.shutdownNow();
+
+        writers.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        persistenceExecutor.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void concurrentAppliesAreReadBackAndPersisted() throws Exception {
+        final WriteBehindPreferences buffered = new WriteBehindPreferences(preferences, persistenceExecutor);
+
+        runWriters(new Writer() {
+            public void write(int thread, int index) {
+                String key = "value_" + thread;
+
+                buffered.edit()
+                        .putLong(key, index)
+                        .putString("last_" + thread, String.valueOf(index))
+                        .putBoolean("odd_" + thread, index % 2 == 1)
+                        .apply();
+
+                // Every thread owns its keys, so nothing else may overwrite what it just applied
+                assertEquals(index, buffered.getLong(key, -1));
+                assertEquals(String.valueOf(index), buffered.getString("last_" + thread, null));
+            }
+        });
+
+        assertTrue(buffered.awaitPersisted(TIMEOUT_MS));
+
+        for (int thread = 0; thread < WRITER_THREADS; thread++) {
+            assertEquals(WRITES_PER_THREAD - 1, preferences.getLong("value_" + thread, -1));
+            assertEquals(String.valueOf(WRITES_PER_THREAD - 1), preferences.getString("last_" + thread, null));
+            assertEquals((WRITES_PER_THREAD - 1) % 2 == 1, preferences.getBoolean("odd_" + thread, false));
+        }
+    }
+
+    @Test
+    public void awaitPersistedCoversEveryEarlierApply() throws Exception {
+        final WriteBehindPreferences buffered = new WriteBehindPreferences(preferences, persistenceExecutor);
+
+        runWriters(new Writer() {
+            public void write(int thread, int index) {
+                String key = "value_" + thread;
+
+                buffered.edit()
+                        .putLong(key, index)
+                        .apply();
+
+                // Flushes started by other threads may race this one, but must never satisfy the barrier early
+                if (index % 25 == 0) {
+                    assertTrue(buffered.awaitPersisted(TIMEOUT_MS));
+                    assertEquals(index, preferences.getLong(key, -1));
+                }
+            }
+        });
+
+        assertTrue(buffered.awaitPersisted(TIMEOUT_MS));
+    }
+
+    @Test
+    public void removalsWinOverEarlierWrites() throws Exception {
+        final WriteBehindPreferences buffered = new WriteBehindPreferences(preferences, persistenceExecutor);
+
+        runWriters(new Writer() {
+            public void write(int thread, int index) {
+                String key = "removed_" + thread;
+
+                buffered.edit()
+                        .putString(key, "value")
+                        .apply();
+                buffered.edit()
+                        .remove(key)
+                        .apply();
+
+                assertEquals(null, buffered.getString(key, null));
+            }
+        });
+
+        assertTrue(buffered.awaitPersisted(TIMEOUT_MS));
+
+        for (int thread = 0; thread < WRITER_THREADS; thread++)
+            assertFalse(preferences.contains("removed_" + thread));
+    }
+
+    @Test
+    public void awaitPersistedTimesOutWhileAFlushIsBlocked() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        persistenceExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        WriteBehindPreferences buffered = new WriteBehindPreferences(preferences, persistenceExecutor);
+        buffered.edit()
+                .putLong("blocked", 1)
+                .apply();
+
+        assertEquals(1, buffered.getLong("blocked", -1));
+        assertFalse(buffered.awaitPersisted(50));
+        assertFalse(preferences.contains("blocked"));
+
+        release.countDown();
+
+        assertTrue(buffered.awaitPersisted(TIMEOUT_MS));
+        assertEquals(1, preferences.getLong("blocked", -1));
+    }
+
+    @Test
+    public void failedCommitsAreReportedAndRetried() throws Exception {
+        FailingPreferences failing = new FailingPreferences(preferences);
+        failing.failCommits = true;
+
+        WriteBehindPreferences buffered = new WriteBehindPreferences(failing, persistenceExecutor);
+        buffered.edit()
+                .putLong("retried", 1)
+                .putLong("replaced", 1)
+                .apply();
+
+        // Reported as soon as the commit fails, not after the whole timeout
+        long start = System.nanoTime();
+
+        assertFalse(buffered.awaitPersisted(TIMEOUT_MS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS));
+
+        assertEquals(1, buffered.getLong("retried", -1));
+        assertFalse(preferences.contains("retried"));
+
+        failing.failCommits = false;
+
+        buffered.edit()
+                .putLong("replaced", 2)
+                .apply();
+
+        assertTrue(buffered.awaitPersisted(TIMEOUT_MS));
+
+        // The failed batch goes out with the next flush, without overwriting what's newer
+        assertEquals(1, preferences.getLong("retried", -1));
+        assertEquals(2, preferences.getLong("replaced", -1));
+    }
+
+    private void runWriters(final Writer writer) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        for (int i = 0; i < WRITER_THREADS; i++) {
+            final int thread = i;
+
+            results.add(writers.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+
+                    for (int index = 0; index < WRITES_PER_THREAD; index++)
+                        writer.write(thread, index);
+
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        // Rethrows any assertion a writer failed
+        for (Future<Void> result : results)
+            result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private interface Writer {
+        void write(int thread, int index);
+    }
+
+    /**
+     * Passes everything through to preferences, except that commits can be made to fail the way
+     * they do on a full or read-only disk: without writing anything.
+     */
+    private static class FailingPreferences implements SharedPreferences {
+
+        private final SharedPreferences preferences;
+        volatile boolean failCommits;
+
+        FailingPreferences(SharedPreferences preferences) {
+            this.preferences = preferences;
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return preferences.getAll();
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return preferences.getString(key, defValue);
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return preferences.getStringSet(key, defValues);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return preferences.getInt(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return preferences.getLong(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return preferences.getFloat(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return preferences.getBoolean(key, defValue);
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return preferences.contains(key);
+        }
+
+        @Override
+        public Editor edit() {
+            final Editor editor = preferences.edit();
+
+            return new Editor() {
+                public Editor putString(String key, String value) {
+                    editor.putString(key, value);
+                    return this;
+                }
+
+                public Editor putStringSet(String key, Set<String> values) {
+                    editor.putStringSet(key, values);
+                    return this;
+                }
+
+                public Editor putInt(String key, int value) {
+                    editor.putInt(key, value);
+                    return this;
+                }
+
+                public Editor putLong(String key, long value) {
+                    editor.putLong(key, value);
+                    return this;
+                }
+
+                public Editor putFloat(String key, float value) {
+                    editor.putFloat(key, value);
+                    return this;
+                }
+
+                public Editor putBoolean(String key, boolean value) {
+                    editor.putBoolean(key, value);
+                    return this;
+                }
+
+                public Editor remove(String key) {
+                    editor.remove(key);
+                    return this;
+                }
+
+                public Editor clear() {
+                    editor.clear();
+                    return this;
+                }
+
+                public boolean commit() {
+                    return !failCommits && editor.commit();
+                }
+
+                public void apply() {
+                    if (!failCommits)
+                        editor.apply();
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            preferences.registerOnSharedPreferenceChangeListener(listener);
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            preferences.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+    }
+}